@@ -0,0 +1,170 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+import javastraw.reader.basics.ChromosomeHandler;
+import javastraw.reader.basics.ChromosomeTools;
+import javastraw.reader.datastructures.ListOfFloatArrays;
+import javastraw.reader.type.NormalizationHandler;
+import juicebox.HiCGlobals;
+import juicebox.tools.utils.norm.final2.FinalScale;
+import juicebox.tools.utils.original.ExpectedValueCalculation;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the normalization kernels on generated contacts (see {@link SyntheticContacts}).
+ * <p/>
+ * Run with {@code ant benchmarks}, which adds the GC profiler so that the allocation rate of each
+ * kernel is reported next to its throughput. The matrix size and sparsity are parameters, e.g.
+ * {@code ant benchmarks -Dbenchmark.args="-p numBins=1000000 -p contactsPerRow=20"}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class NormalizationBenchmarks {
+
+    @Param({"100000"})
+    public int numBins;
+
+    @Param({"50"})
+    public int contactsPerRow;
+
+    @Param({"1.0"})
+    public double decayExponent;
+
+    @Param({"0.05"})
+    public double emptyRowFraction;
+
+    @Param({"1"})
+    public int numThreads;
+
+    @Param({"false", "true"})
+    public boolean accelerateScale;
+
+    @Param({"false", "true"})
+    public boolean mixedPrecisionKR;
+
+    private SyntheticContacts contacts;
+    private SparseContactMatrix matrix;
+    private RowStatistics rowStatistics;
+    private ListOfFloatArrays ones;
+    private ListOfFloatArrays scale;
+    private NormalizationCalculations calculations;
+    private ExpectedValueCalculation expectedValueCalculation;
+    private int chrIdx;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        HiCGlobals.ACCELERATE_SCALE = accelerateScale;
+        HiCGlobals.MIXED_PRECISION_KR = mixedPrecisionKR;
+        contacts = new SyntheticContacts(numBins, contactsPerRow, decayExponent, emptyRowFraction, 1);
+        matrix = contacts.createMatrix(numThreads);
+        rowStatistics = RowStatistics.create(null, matrix);
+        ones = new ListOfFloatArrays(numBins, 1);
+        calculations = NormalizationCalculations.fromMatrix(matrix);
+        scale = calculations.computeMMBA();
+        if (scale == null) {
+            throw new IllegalStateException("SCALE did not converge on the generated matrix");
+        }
+
+        // one chromosome just long enough for the bins
+        File sizes = File.createTempFile("benchmark", ".chrom.sizes");
+        sizes.deleteOnExit();
+        try (Writer writer = new FileWriter(sizes)) {
+            writer.write("chr1\t" + numBins + "\n");
+        }
+        ChromosomeHandler chromosomeHandler = ChromosomeTools.loadChromosomes(sizes.getAbsolutePath());
+        chrIdx = chromosomeHandler.getChromosomeArrayWithoutAllByAll()[0].getIndex();
+        expectedValueCalculation = new ExpectedValueCalculation(chromosomeHandler, 1, null, NormalizationHandler.SCALE);
+    }
+
+    /**
+     * The SCALE iterations, from the row statistics on
+     */
+    @Benchmark
+    public ListOfFloatArrays finalScale() {
+        return FinalScale.scaleToTargetVector(null, matrix, rowStatistics, ones, null);
+    }
+
+    /**
+     * The KR iterations (computeKRNormVector and the retries around it), including the row statistics
+     */
+    @Benchmark
+    public ListOfFloatArrays kr() {
+        return NormalizationCalculations.fromMatrix(matrix).computeKR();
+    }
+
+    /**
+     * Inverts and rescales the vector in place, so successive calls alternate between two vectors with the same valid entries
+     */
+    @Benchmark
+    public ListOfFloatArrays normalizeVectorByScaleFactor() {
+        return ZeroScale.normalizeVectorByScaleFactor(scale, null, matrix);
+    }
+
+    @Benchmark
+    public double sumFactor() {
+        return calculations.getSumFactor(scale);
+    }
+
+    @Benchmark
+    public double[] normalizedDistanceSums() {
+        return matrix.getNormalizedDistanceSums(scale);
+    }
+
+    /**
+     * The sum factor and distance sums of four vectors in one pass, as addNorm finishes VC, VC_SQRT, KR and SCALE;
+     * compare with four times sumFactor plus normalizedDistanceSums
+     */
+    @Benchmark
+    public NormalizedSums[] normalizedSumsOfFourNorms() {
+        return matrix.getNormalizedSums(Arrays.asList(scale, scale, scale, scale));
+    }
+
+    /**
+     * Every contact added one at a time, as the genome-wide norms do
+     */
+    @Benchmark
+    public void addDistance(Blackhole blackhole) {
+        long[] rowPointers = contacts.rowPointers;
+        for (int x = 0; x < contacts.numBins; x++) {
+            for (int q = (int) rowPointers[x]; q < rowPointers[x + 1]; q++) {
+                expectedValueCalculation.addDistance(chrIdx, x, contacts.binY[q], contacts.counts[q]);
+            }
+        }
+        blackhole.consume(expectedValueCalculation);
+    }
+}
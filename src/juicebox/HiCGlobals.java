@@ -26,6 +26,7 @@ package juicebox;
 
 import javastraw.reader.mzd.MatrixZoomData;
 
+import java.io.File;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -46,6 +47,30 @@ public class HiCGlobals {
     public static boolean printVerboseComments = false;
     public static boolean USE_ITERATOR_NOT_ALL_IN_RAM = false;
     public static boolean CHECK_RAM_USAGE = false;
+    // where contacts are spilled when a matrix is too big to normalize in memory (null for the system default)
+    public static File NORM_TMP_DIRECTORY = null;
+    // start SCALE at each resolution from the vector at the next coarser resolution
+    public static boolean WARM_START_SCALE = false;
+    // approximate the percentiles used to filter rows with a bounded-memory sketch instead of exact selection
+    public static boolean USE_QUANTILE_SKETCH = false;
+    // load each chromosome once at the finest resolution normalized and sum its bins into the coarser resolutions
+    public static boolean AGGREGATE_RESOLUTIONS = false;
+    // directory to keep calculated norm vectors in, to reuse them when addNorm is run again (null for no cache)
+    public static File NORM_CACHE_DIRECTORY = null;
+    // calculate every requested norm again, dropping the norms already in the file, instead of only the missing ones
+    public static boolean RECOMPUTE_ALL_NORMS = false;
+    // keep finished norms in a checkpoint file next to the .hic file, so that a restarted addNorm resumes from them
+    public static boolean CHECKPOINT_NORMS = false;
+    // run SCALE with one multiply per iteration and Anderson mixing of the last few iterations, for fewer passes over the contacts
+    public static boolean ACCELERATE_SCALE = false;
+    // bytes of deflated contacts to keep in memory when conserving RAM, so passes do not read the .hic file again (0 for none)
+    public static long COMPRESSED_CONTACT_CACHE_BYTES = 0;
+    // store the working vectors of the KR iterations in float (sums are still taken in double), for about half their memory
+    public static boolean MIXED_PRECISION_KR = false;
+    // skip KR and SCALE for matrices too sparse or fragmented to converge, and give up on iterations that stop improving
+    public static boolean ABORT_NON_CONVERGING = false;
+    // split passes over the contacts and gather their sums the same way whatever the number of threads, so norms are bit-identical
+    public static boolean DETERMINISTIC_REDUCTIONS = false;
 
     public static void verifySupportedHiCFileVersion(int version) throws RuntimeException {
         if (version < minVersion) {
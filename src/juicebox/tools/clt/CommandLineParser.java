@@ -55,6 +55,16 @@ public class CommandLineParser extends CmdLineParser {
     private final Option throwIntraFragOption = addBooleanOption("skip-intra-frag");
     private final Option useMinRAM = addBooleanOption("conserve-ram");
     private final Option checkMemory = addBooleanOption("check-ram-usage");
+    private final Option warmStartScaleOption = addBooleanOption("warm-start-scale");
+    private final Option quantileSketchOption = addBooleanOption("quantile-sketch");
+    private final Option aggregateResolutionsOption = addBooleanOption("aggregate-resolutions");
+    private final Option recomputeAllNormsOption = addBooleanOption("recompute-all-norms");
+    private final Option mergeShardsOption = addBooleanOption("merge-shards");
+    private final Option checkpointOption = addBooleanOption("checkpoint");
+    private final Option accelerateScaleOption = addBooleanOption("accelerate-scale");
+    private final Option mixedPrecisionKROption = addBooleanOption("mixed-precision-kr");
+    private final Option abortNonConvergingOption = addBooleanOption("abort-non-converging");
+    private final Option deterministicReductionsOption = addBooleanOption("deterministic-reductions");
 
     // String
     private final Option fragmentOption = addStringOption('f', "restriction-fragment-site-file");
@@ -67,6 +77,10 @@ public class CommandLineParser extends CmdLineParser {
     private final Option mndIndexOption = addStringOption('i', "mndindex");
     private final Option ligationOption = addStringOption("ligation");
     private final Option shellOption = addStringOption("shell");
+    private final Option normCacheOption = addStringOption("norm-cache");
+    private final Option fileListOption = addStringOption("file-list");
+    private final Option shardOption = addStringOption("shard");
+    private final Option shardOutputOption = addStringOption("shard-output");
 
     // ints
     private final Option blockCapacityOption = addIntegerOption("block-capacity");
@@ -89,6 +103,7 @@ public class CommandLineParser extends CmdLineParser {
     //filter optrectionalion based on diity
     private final Option hicFileScalingOption = addDoubleOption('z', "scale");
     private final Option randomSeedOption = addLongOption("random-seed");
+    private final Option compressedCacheOption = addDoubleOption("compressed-cache");
 
 
     public CommandLineParser() {
@@ -147,6 +162,46 @@ public class CommandLineParser extends CmdLineParser {
         return optionToBoolean(checkMemory);
     }
 
+    public boolean getWarmStartScaleOption() {
+        return optionToBoolean(warmStartScaleOption);
+    }
+
+    public boolean getQuantileSketchOption() {
+        return optionToBoolean(quantileSketchOption);
+    }
+
+    public boolean getAggregateResolutionsOption() {
+        return optionToBoolean(aggregateResolutionsOption);
+    }
+
+    public boolean getRecomputeAllNormsOption() {
+        return optionToBoolean(recomputeAllNormsOption);
+    }
+
+    public boolean getMergeShardsOption() {
+        return optionToBoolean(mergeShardsOption);
+    }
+
+    public boolean getCheckpointOption() {
+        return optionToBoolean(checkpointOption);
+    }
+
+    public boolean getAccelerateScaleOption() {
+        return optionToBoolean(accelerateScaleOption);
+    }
+
+    public boolean getMixedPrecisionKROption() {
+        return optionToBoolean(mixedPrecisionKROption);
+    }
+
+    public boolean getAbortNonConvergingOption() {
+        return optionToBoolean(abortNonConvergingOption);
+    }
+
+    public boolean getDeterministicReductionsOption() {
+        return optionToBoolean(deterministicReductionsOption);
+    }
+
     /**
      * String flags
      */
@@ -173,6 +228,22 @@ public class CommandLineParser extends CmdLineParser {
         return optionToString(tmpDirOption);
     }
 
+    public String getNormCacheOption() {
+        return optionToString(normCacheOption);
+    }
+
+    public String getFileListOption() {
+        return optionToString(fileListOption);
+    }
+
+    public String getShardOption() {
+        return optionToString(shardOption);
+    }
+
+    public String getShardOutputOption() {
+        return optionToString(shardOutputOption);
+    }
+
     public String getExpectedVectorOption() {
         return optionToString(expectedVectorOption);
     }
@@ -271,6 +342,13 @@ public class CommandLineParser extends CmdLineParser {
         return 1;
     }
 
+    /**
+     * @return size of the compressed contact cache in GB, or -1 if not set
+     */
+    public double getCompressedCacheOption() {
+        return optionToDouble(compressedCacheOption);
+    }
+
     /**
      * String Set flags
      */
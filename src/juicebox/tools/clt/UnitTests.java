@@ -24,11 +24,77 @@
 
 package juicebox.tools.clt;
 
+import javastraw.reader.datastructures.ListOfFloatArrays;
+import javastraw.reader.type.NormalizationHandler;
+import juicebox.HiCGlobals;
+import juicebox.tools.utils.norm.NormalizationCalculations;
+import juicebox.tools.utils.norm.SparseContactMatrix;
+import juicebox.tools.utils.norm.SyntheticContacts;
+
 /**
  * Created by muhammadsaadshamim on 7/22/15.
  */
 class UnitTests {
 
+    // largest relative difference allowed between the mixed-precision and double KR vectors
+    private static final float KR_TOLERANCE = 1e-4f;
+
+    /**
+     * Regression checks of the normalizations on generated contacts; run with {@code ant unit.tests}
+     */
+    public static void main(String[] args) {
+        SyntheticContacts contacts = new SyntheticContacts(100000, 50, 1.0, 0.05, 1);
+        checkMixedPrecisionKR(contacts.createMatrix(1));
+        checkAbortNonConvergingAfterRestart(contacts.createMatrixWithPathTail(10000, 1));
+        System.out.println("All checks passed");
+    }
+
+    /**
+     * The float KR vector should match the double one
+     */
+    private static void checkMixedPrecisionKR(SparseContactMatrix matrix) {
+        boolean mixedPrecisionKR = HiCGlobals.MIXED_PRECISION_KR;
+        HiCGlobals.MIXED_PRECISION_KR = false;
+        ListOfFloatArrays expected = NormalizationCalculations.fromMatrix(matrix).getNorm(NormalizationHandler.KR);
+        HiCGlobals.MIXED_PRECISION_KR = true;
+        ListOfFloatArrays actual = NormalizationCalculations.fromMatrix(matrix).getNorm(NormalizationHandler.KR);
+        HiCGlobals.MIXED_PRECISION_KR = mixedPrecisionKR;
+        if (expected == null || actual == null) {
+            throw new IllegalStateException("KR did not converge on the generated matrix");
+        }
+        for (long i = 0; i < expected.getLength(); i++) {
+            float e = expected.get(i);
+            float a = actual.get(i);
+            if (Float.isNaN(e) != Float.isNaN(a) || Math.abs(a - e) > KR_TOLERANCE * Math.abs(e)) {
+                throw new IllegalStateException("Mixed-precision KR differs at bin " + i + ": " + a + " instead of " + e);
+            }
+        }
+    }
+
+    /**
+     * Giving up on stagnant SCALE iterations should not fail a matrix that only converges
+     * after SCALE restarts with fewer rows
+     */
+    private static void checkAbortNonConvergingAfterRestart(SparseContactMatrix matrix) {
+        boolean abortNonConverging = HiCGlobals.ABORT_NON_CONVERGING;
+        HiCGlobals.ABORT_NON_CONVERGING = false;
+        ListOfFloatArrays expected = NormalizationCalculations.fromMatrix(matrix).getNorm(NormalizationHandler.SCALE);
+        HiCGlobals.ABORT_NON_CONVERGING = true;
+        ListOfFloatArrays actual = NormalizationCalculations.fromMatrix(matrix).getNorm(NormalizationHandler.SCALE);
+        HiCGlobals.ABORT_NON_CONVERGING = abortNonConverging;
+        if (expected == null) {
+            throw new IllegalStateException("SCALE did not converge on the generated matrix with a path tail");
+        }
+        if (actual == null) {
+            throw new IllegalStateException("SCALE gave up after restarting on the generated matrix with a path tail");
+        }
+        for (long i = 0; i < expected.getLength(); i++) {
+            if (Float.compare(expected.get(i), actual.get(i)) != 0) {
+                throw new IllegalStateException("SCALE with --abort-non-converging differs at bin " + i);
+            }
+        }
+    }
+
     /*
 
     public static void pearsonsAndEigenvector() {
@@ -29,9 +29,14 @@ import javastraw.reader.type.NormalizationType;
 import juicebox.HiCGlobals;
 import juicebox.tools.clt.CommandLineParser;
 import juicebox.tools.clt.JuiceboxCLT;
+import juicebox.tools.utils.norm.BatchNormalizationVectorUpdater;
 import juicebox.tools.utils.norm.CustomNormVectorFileHandler;
+import juicebox.tools.utils.norm.NormShard;
 import juicebox.tools.utils.norm.NormalizationVectorUpdater;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -45,6 +50,12 @@ public class AddNorm extends JuiceboxCLT {
     private String inputVectorFile = null;
     private int genomeWideResolution = -100;
     private String file;
+    // all files to normalize when running a batch (null for a single file)
+    private List<String> files = null;
+    // part of the norms to calculate into a sidecar file (null to calculate all of them into the .hic file)
+    private NormShard shard = null;
+    // sidecar files to write into the .hic file (null unless merging)
+    private List<String> shardFiles = null;
     private final List<NormalizationType> normalizationTypes = new ArrayList<>();
     private Map<NormalizationType, Integer> resolutionsToBuildTo;
 
@@ -58,7 +69,23 @@ public class AddNorm extends JuiceboxCLT {
                 + "           : -r resolutions for respective normalizations to build to\n"
                 + "           : -j number of CPU threads to use\n"
                 + "           : --conserve-ram will minimize RAM usage\n"
-                + "           : --check-ram-usage will check ram requirements prior to running"
+                + "           : --check-ram-usage will check ram requirements prior to running\n"
+                + "           : --compressed-cache <GB> with --conserve-ram, keep up to this much deflated contacts in memory instead of reading them from the file on every pass\n"
+                + "           : -t <tmpDir> directory for the contacts of matrices too big to normalize in memory\n"
+                + "           : --warm-start-scale start SCALE from the vector at the next coarser resolution\n"
+                + "           : --accelerate-scale speed up SCALE convergence by mixing its recent iterations (falls back to the classic iterations if that diverges)\n"
+                + "           : --mixed-precision-kr keep the KR vectors in float to halve their memory (sums are still taken in double)\n"
+                + "           : --abort-non-converging fail KR and SCALE early for chromosomes too sparse to converge, or whose iterations stop improving (they are then skipped at finer resolutions)\n"
+                + "           : --deterministic-reductions make norm vectors and expected values bit-identical whatever the number of threads\n"
+                + "           : --quantile-sketch approximate row filtering percentiles in bounded memory (for very large genome-wide maps)\n"
+                + "           : --aggregate-resolutions read each chromosome once at the finest resolution and sum it into the coarser ones\n"
+                + "           : --norm-cache <dir> keep calculated KR and SCALE vectors in the directory and reuse them for unchanged matrices\n"
+                + "           : --recompute-all-norms calculate every requested norm again and drop the norms already in the file (by default, norms already in the file are kept and only missing ones are calculated)\n"
+                + "           : --file-list <file> normalize the .hic files listed in the file (one per line) and any given on the command line, in one run\n"
+                + "           : --shard <i>/<n> only calculate the i-th of n shares of the norms, into a sidecar file instead of the .hic file\n"
+                + "           : --shard-output <file> sidecar file for --shard [<input_HiC_file>.shard<i>of<n>.norms]\n"
+                + "           : --checkpoint keep finished norms in <input_HiC_file>.checkpoint (or next to the --shard-output file), and resume from them if run again\n"
+                + "           : --merge-shards write the norms of all the sidecar files into the .hic file: addNorm --merge-shards <input_HiC_file> <sidecar_file>..."
         );
     }
 
@@ -78,7 +105,7 @@ public class AddNorm extends JuiceboxCLT {
                               boolean noFragNorm, int numCPUThreads,
                               Map<NormalizationType, Integer> resolutionsToBuildTo) throws IOException {
         HiCGlobals.useCache = false;
-        NormalizationVectorUpdater updater = new NormalizationVectorUpdater();
+        NormalizationVectorUpdater updater = new NormalizationVectorUpdater(numCPUThreads);
         updater.updateHicFile(outputFile, normalizationTypes, resolutionsToBuildTo, genomeWide, noFragNorm);
     }
 
@@ -88,7 +115,24 @@ public class AddNorm extends JuiceboxCLT {
             printUsageAndExit();
         }
 
-        if (args.length == 3) {
+        String fileList = parser.getFileListOption();
+        if (parser.getMergeShardsOption()) {
+            if (args.length < 3) {
+                printUsageAndExit();
+            }
+            shardFiles = new ArrayList<>();
+            for (int i = 2; i < args.length; i++) {
+                shardFiles.add(args[i]);
+            }
+        } else if (fileList != null) {
+            files = readFileList(fileList);
+            for (int i = 1; i < args.length; i++) {
+                files.add(args[i]);
+            }
+            if (files.isEmpty()) {
+                printUsageAndExit();
+            }
+        } else if (args.length == 3) {
             inputVectorFile = args[2];
         } else if (args.length != 2) {
             printUsageAndExit();
@@ -97,6 +141,27 @@ public class AddNorm extends JuiceboxCLT {
         HiCGlobals.USE_ITERATOR_NOT_ALL_IN_RAM = parser.getDontPutAllContactsIntoRAM();
         HiCGlobals.CHECK_RAM_USAGE = parser.shouldCheckRAMUsage();
         HiCGlobals.setMatrixZoomDataRAMUsage();
+        HiCGlobals.WARM_START_SCALE = parser.getWarmStartScaleOption();
+        HiCGlobals.USE_QUANTILE_SKETCH = parser.getQuantileSketchOption();
+        HiCGlobals.AGGREGATE_RESOLUTIONS = parser.getAggregateResolutionsOption();
+        HiCGlobals.RECOMPUTE_ALL_NORMS = parser.getRecomputeAllNormsOption();
+        HiCGlobals.CHECKPOINT_NORMS = parser.getCheckpointOption();
+        HiCGlobals.ACCELERATE_SCALE = parser.getAccelerateScaleOption();
+        HiCGlobals.MIXED_PRECISION_KR = parser.getMixedPrecisionKROption();
+        HiCGlobals.ABORT_NON_CONVERGING = parser.getAbortNonConvergingOption();
+        HiCGlobals.DETERMINISTIC_REDUCTIONS = parser.getDeterministicReductionsOption();
+        double compressedCacheGB = parser.getCompressedCacheOption();
+        if (compressedCacheGB > 0) {
+            HiCGlobals.COMPRESSED_CONTACT_CACHE_BYTES = (long) (compressedCacheGB * (1L << 30));
+        }
+        String tmpDir = parser.getTmpdirOption();
+        if (tmpDir != null) {
+            HiCGlobals.NORM_TMP_DIRECTORY = new File(tmpDir);
+        }
+        String normCacheDir = parser.getNormCacheOption();
+        if (normCacheDir != null) {
+            HiCGlobals.NORM_CACHE_DIRECTORY = new File(normCacheDir);
+        }
 
         updateNumberOfCPUThreads(parser, 10);
         IteratorContainer.numCPUMatrixThreads = numCPUThreads;
@@ -125,14 +190,64 @@ public class AddNorm extends JuiceboxCLT {
             }
         }
 
-        file = args[1];
+        if (files == null) {
+            file = args[1];
+        }
+
+        String shardSpec = parser.getShardOption();
+        if (shardSpec != null) {
+            if (files != null || inputVectorFile != null || shardFiles != null) {
+                System.err.println("Error: --shard can only be used to normalize a single file");
+                System.exit(1);
+            }
+            try {
+                shard = NormShard.create(shardSpec, parser.getShardOutputOption(), file);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Error: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * @return the paths in the file, skipping blank lines and lines starting with #
+     */
+    private static List<String> readFileList(String fileList) {
+        List<String> paths = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileList))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    paths.add(line);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to read file list " + fileList);
+            System.exit(1);
+        }
+        return paths;
     }
 
     @Override
     public void run() {
         HiCGlobals.allowDynamicBlockIndex = false;
         try {
-            if (inputVectorFile != null) {
+            if (files != null) {
+                HiCGlobals.useCache = false;
+                List<String> failedFiles = BatchNormalizationVectorUpdater.updateHicFiles(files, normalizationTypes,
+                        resolutionsToBuildTo, genomeWideResolution, noFragNorm, numCPUThreads);
+                if (!failedFiles.isEmpty()) {
+                    System.err.println("Could not normalize " + failedFiles.size() + " of " + files.size() + " files: " + failedFiles);
+                }
+            } else if (shardFiles != null) {
+                NormShard.merge(file, shardFiles);
+            } else if (shard != null) {
+                HiCGlobals.useCache = false;
+                NormalizationVectorUpdater updater = new NormalizationVectorUpdater(numCPUThreads);
+                updater.setShard(shard);
+                updater.updateHicFile(file, normalizationTypes, resolutionsToBuildTo, genomeWideResolution, noFragNorm);
+            } else if (inputVectorFile != null) {
                 CustomNormVectorFileHandler.updateHicFile(file, inputVectorFile);
             } else {
                 launch(file, normalizationTypes, genomeWideResolution, noFragNorm,
@@ -0,0 +1,90 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+import javastraw.reader.type.NormalizationType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Add norms to many .hic files in one run.
+ * <p/>
+ * A few files are processed at a time, so that one can keep the CPUs busy while another is being
+ * read or written; their chromosomes are normalized by the same worker threads, within one memory budget.
+ */
+public class BatchNormalizationVectorUpdater {
+
+    // files in progress at the same time
+    private static final int FILES_IN_PROGRESS = 2;
+
+    /**
+     * @return paths of the files that could not be normalized
+     */
+    public static List<String> updateHicFiles(List<String> paths, List<NormalizationType> normalizationsToBuild,
+                                              Map<NormalizationType, Integer> resolutionsToBuildTo,
+                                              int genomeWideLowestResolutionAllowed, boolean noFrag, int numThreads) {
+        final NormalizationScheduler scheduler = new NormalizationScheduler(numThreads, SparseContactMatrix.getAvailableMemory());
+        // with one thread the files could not overlap anyway
+        int numFilesInProgress = numThreads > 1 ? Math.min(FILES_IN_PROGRESS, paths.size()) : 1;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numFilesInProgress));
+
+        List<Future<?>> results = new ArrayList<>();
+        for (final String path : paths) {
+            results.add(executor.submit(() -> {
+                System.out.println("Normalizing " + path);
+                new NormalizationVectorUpdater(numThreads, scheduler).updateHicFile(path, normalizationsToBuild,
+                        resolutionsToBuildTo, genomeWideLowestResolutionAllowed, noFrag);
+                return null;
+            }));
+        }
+        executor.shutdown();
+
+        List<String> failedPaths = new ArrayList<>();
+        for (int i = 0; i < paths.size(); i++) {
+            try {
+                results.get(i).get();
+            } catch (ExecutionException e) {
+                System.err.println("Could not normalize " + paths.get(i));
+                e.getCause().printStackTrace();
+                failedPaths.add(paths.get(i));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                executor.shutdownNow();
+                for (int j = i; j < paths.size(); j++) {
+                    failedPaths.add(paths.get(j));
+                }
+                break;
+            }
+        }
+        scheduler.shutdown();
+        return failedPaths;
+    }
+}
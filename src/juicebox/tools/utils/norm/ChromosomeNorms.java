@@ -0,0 +1,134 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+import javastraw.reader.datastructures.ListOfFloatArrays;
+import javastraw.reader.type.HiCZoom;
+import javastraw.reader.type.NormalizationType;
+import juicebox.tools.utils.original.ExpectedValueCalculation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Norm vectors of one chromosome at one zoom, with their contribution to the expected values,
+ * held until they can be written out in chromosome order
+ */
+class ChromosomeNorms {
+
+    private final int chrIdx;
+    private final HiCZoom zoom;
+    private final List<NormalizationType> types = new ArrayList<>();
+    private final List<ListOfFloatArrays> vectors = new ArrayList<>();
+    private final List<ExpectedValueCalculation> expectedValueCalculations = new ArrayList<>();
+    private final List<double[]> distanceSums = new ArrayList<>();
+    private long numContacts = 0;
+
+    ChromosomeNorms(int chrIdx, HiCZoom zoom) {
+        this.chrIdx = chrIdx;
+        this.zoom = zoom;
+    }
+
+    /**
+     * @param distanceSums normalized counts summed by distance, or null if there are none
+     */
+    void add(NormalizationType type, ListOfFloatArrays vector, ExpectedValueCalculation ev, double[] distanceSums) {
+        types.add(type);
+        vectors.add(vector);
+        expectedValueCalculations.add(ev);
+        this.distanceSums.add(distanceSums);
+    }
+
+    /**
+     * Add a vector whose distance sums are set later, once all the vectors of the chromosome are known
+     */
+    void add(NormalizationType type, ListOfFloatArrays vector, ExpectedValueCalculation ev) {
+        add(type, vector, ev, null);
+    }
+
+    /**
+     * Add the norms of another calculation for the same chromosome and zoom, after the ones already added
+     */
+    void addAll(ChromosomeNorms other) {
+        types.addAll(other.types);
+        vectors.addAll(other.vectors);
+        expectedValueCalculations.addAll(other.expectedValueCalculations);
+        distanceSums.addAll(other.distanceSums);
+    }
+
+    void setDistanceSums(int index, double[] distanceSums) {
+        this.distanceSums.set(index, distanceSums);
+    }
+
+    int getChrIdx() {
+        return chrIdx;
+    }
+
+    HiCZoom getZoom() {
+        return zoom;
+    }
+
+    List<NormalizationType> getTypes() {
+        return types;
+    }
+
+    List<ListOfFloatArrays> getVectors() {
+        return vectors;
+    }
+
+    List<double[]> getDistanceSums() {
+        return distanceSums;
+    }
+
+    /**
+     * @return the vector of the norm type, or null if there is none
+     */
+    ListOfFloatArrays getVector(NormalizationType type) {
+        int index = types.indexOf(type);
+        return index < 0 ? null : vectors.get(index);
+    }
+
+    /**
+     * @return number of contacts the norms were calculated from (0 if unknown)
+     */
+    long getNumberOfContacts() {
+        return numContacts;
+    }
+
+    void setNumberOfContacts(long numContacts) {
+        this.numContacts = numContacts;
+    }
+
+    /**
+     * Write the vectors out, and add the distances to the expected values
+     */
+    void write(NormVectorWriter normVectorWriter) throws IOException {
+        for (int i = 0; i < types.size(); i++) {
+            normVectorWriter.add(vectors.get(i), chrIdx, types.get(i), zoom);
+            expectedValueCalculations.get(i).addDistanceSums(chrIdx, distanceSums.get(i));
+        }
+    }
+}
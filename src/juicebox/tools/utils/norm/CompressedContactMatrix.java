@@ -0,0 +1,283 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+import javastraw.reader.block.ContactRecord;
+import javastraw.reader.iterators.IteratorContainer;
+import javastraw.tools.ParallelizationTools;
+import juicebox.HiCGlobals;
+import juicebox.tools.utils.norm.final2.ScaleThreadObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * CSR matrix whose contacts are kept in memory as deflated blocks of rows, for when RAM is conserved:
+ * passes inflate the blocks instead of reading every contact from the .hic file again.
+ * <p/>
+ * Each block holds the columns of its contacts (as offsets from their row, 4-byte ints) followed by their
+ * values (4-byte floats). The compressed bytes of all matrices come out of one budget
+ * (HiCGlobals.COMPRESSED_CONTACT_CACHE_BYTES); a matrix returns its share when it is released.
+ */
+class CompressedContactMatrix extends SparseContactMatrix {
+
+    private static final int CONTACTS_PER_BLOCK = 1 << 20;
+    private static final AtomicLong BYTES_CACHED = new AtomicLong(0);
+
+    private final byte[][] blocks;
+    private final int[] blockStartRows;
+    private final long compressedBytes;
+    private final int numWorkers;
+    private final int numSlots;
+    private final byte[][] rawBuffers;
+    private final int[][] columnBuffers;
+    private final float[][] valueBuffers;
+    private final Inflater[] inflaters;
+    private boolean isReleased = false;
+
+    private CompressedContactMatrix(int matrixSize, long[] rowPointers, byte[][] blocks, int[] blockStartRows,
+                                    long compressedBytes, int blockLength, int numWorkers, int numThreads) {
+        super(matrixSize, rowPointers, numThreads);
+        this.blocks = blocks;
+        this.blockStartRows = blockStartRows;
+        this.compressedBytes = compressedBytes;
+        this.numWorkers = numWorkers;
+        this.numSlots = getNumSlots(blockStartRows.length - 1, numWorkers);
+        this.rawBuffers = new byte[numWorkers][8 * blockLength];
+        this.columnBuffers = new int[numWorkers][blockLength];
+        this.valueBuffers = new float[numWorkers][blockLength];
+        this.inflaters = new Inflater[numWorkers];
+        for (int w = 0; w < numWorkers; w++) {
+            inflaters[w] = new Inflater();
+        }
+    }
+
+    /**
+     * @return memory for the buffers a worker reads a block into, for a matrix of about numContacts contacts
+     */
+    static long getBufferBytesPerWorker(long numContacts) {
+        return 16L * Math.min(getContactsPerBlock(CONTACTS_PER_BLOCK), numContacts);
+    }
+
+    /**
+     * Compress the contacts of an iterator container into deflated blocks of rows.
+     * The contacts are read once to count the rows, then once per group of blocks that fits in memory.
+     *
+     * @return the matrix, or null if the cache is off, its budget would be exceeded, or the vectors
+     * needed to normalize the matrix will not fit in memory (callers should then keep using the iterator container)
+     */
+    static SparseContactMatrix load(IteratorContainer ic, int numThreads) {
+        long budget = HiCGlobals.COMPRESSED_CONTACT_CACHE_BYTES;
+        if (budget <= 0 || BYTES_CACHED.get() >= budget) return null;
+        long matrixSize = ic.getMatrixSize();
+        if (matrixSize >= MAX_ARRAY_LENGTH || 2 * 8 * matrixSize >= getAvailableMemory()) return null;
+        int k = (int) matrixSize;
+
+        long[] rowPointers = new long[k + 1];
+        Iterator<ContactRecord> iterator = ic.getNewContactRecordIterator();
+        while (iterator.hasNext()) {
+            rowPointers[iterator.next().getBinX() + 1]++;
+        }
+        int maxRowLength = 0;
+        for (int r = 0; r < k; r++) {
+            maxRowLength = (int) Math.max(maxRowLength, rowPointers[r + 1]);
+            rowPointers[r + 1] += rowPointers[r];
+        }
+        if (maxRowLength > MAX_ARRAY_LENGTH / 8) return null;
+
+        int contactsPerBlock = getContactsPerBlock(CONTACTS_PER_BLOCK);
+        int[] blockStartRows = createBlocks(rowPointers, k, contactsPerBlock);
+        int numBlocks = blockStartRows.length - 1;
+        int blockLength = Math.max(maxRowLength, (int) Math.min(contactsPerBlock, rowPointers[k]));
+        numThreads = Math.max(1, numThreads);
+        int numWorkers = getNumWorkers(k, 16L * blockLength, Math.min(numThreads, numBlocks), numBlocks);
+        if (numWorkers < 1) return null;
+
+        byte[][] blocks = compressBlocks(ic, rowPointers, blockStartRows, blockLength, budget, numThreads);
+        if (blocks == null) return null;
+        long compressedBytes = 0;
+        for (byte[] block : blocks) {
+            compressedBytes += block.length;
+        }
+        return new CompressedContactMatrix(k, rowPointers, blocks, blockStartRows, compressedBytes,
+                blockLength, numWorkers, numThreads);
+    }
+
+    /**
+     * Stage as many blocks as fit in half the memory left, read their contacts in one pass, and deflate them;
+     * repeat until all blocks are done
+     *
+     * @return deflated blocks, or null (with nothing left reserved) if they do not fit in the budget
+     */
+    private static byte[][] compressBlocks(IteratorContainer ic, long[] rowPointers, int[] blockStartRows,
+                                           int blockLength, long budget, int numThreads) {
+        final int numBlocks = blockStartRows.length - 1;
+        final byte[][] blocks = new byte[numBlocks][];
+        final AtomicLong reserved = new AtomicLong(0);
+        final AtomicBoolean isOverBudget = new AtomicBoolean(false);
+
+        long stagingCapacity = Math.max(blockLength, Math.min(MAX_ARRAY_LENGTH,
+                (getAvailableMemory() - 8 * rowPointers.length) / 2 / 8));
+        int firstBlock = 0;
+        while (firstBlock < numBlocks && !isOverBudget.get()) {
+            int lastBlock = firstBlock + 1;
+            while (lastBlock < numBlocks
+                    && rowPointers[blockStartRows[lastBlock + 1]] - rowPointers[blockStartRows[firstBlock]] <= stagingCapacity) {
+                lastBlock++;
+            }
+            final int startRow = blockStartRows[firstBlock];
+            final int endRow = blockStartRows[lastBlock];
+            final long firstContact = rowPointers[startRow];
+            final int[] columns = new int[(int) (rowPointers[endRow] - firstContact)];
+            final float[] values = new float[columns.length];
+            long[] nextIndex = new long[endRow - startRow];
+            System.arraycopy(rowPointers, startRow, nextIndex, 0, nextIndex.length);
+            Iterator<ContactRecord> iterator = ic.getNewContactRecordIterator();
+            while (iterator.hasNext()) {
+                ContactRecord cr = iterator.next();
+                int row = cr.getBinX();
+                if (row < startRow || row >= endRow) continue;
+                int index = (int) (nextIndex[row - startRow]++ - firstContact);
+                columns[index] = cr.getBinY() - row;
+                values[index] = cr.getCounts();
+            }
+
+            final int groupStart = firstBlock;
+            final int groupEnd = lastBlock;
+            final AtomicInteger index = new AtomicInteger(groupStart);
+            ParallelizationTools.launchParallelizedCode(Math.min(numThreads, groupEnd - groupStart), () -> {
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                ByteBuffer raw = ByteBuffer.allocate(8 * blockLength).order(ByteOrder.nativeOrder());
+                try {
+                    int b = index.getAndIncrement();
+                    while (b < groupEnd && !isOverBudget.get()) {
+                        int start = (int) (rowPointers[blockStartRows[b]] - firstContact);
+                        int length = (int) (rowPointers[blockStartRows[b + 1]] - firstContact) - start;
+                        raw.clear();
+                        raw.asIntBuffer().put(columns, start, length);
+                        raw.position(4 * length);
+                        raw.asFloatBuffer().put(values, start, length);
+                        blocks[b] = deflate(deflater, raw.array(), 8 * length);
+                        if (BYTES_CACHED.addAndGet(blocks[b].length) > budget) {
+                            isOverBudget.set(true);
+                        }
+                        reserved.addAndGet(blocks[b].length);
+                        b = index.getAndIncrement();
+                    }
+                } finally {
+                    deflater.end();
+                }
+            });
+            firstBlock = lastBlock;
+        }
+
+        if (isOverBudget.get()) {
+            BYTES_CACHED.addAndGet(-reserved.get());
+            return null;
+        }
+        return blocks;
+    }
+
+    private static byte[] deflate(Deflater deflater, byte[] input, int length) {
+        deflater.reset();
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+        ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(64, length / 4));
+        byte[] chunk = new byte[1 << 16];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(chunk);
+            output.write(chunk, 0, n);
+        }
+        return output.toByteArray();
+    }
+
+    @Override
+    public synchronized void release() {
+        if (isReleased) return;
+        isReleased = true;
+        BYTES_CACHED.addAndGet(-compressedBytes);
+        for (Inflater inflater : inflaters) {
+            inflater.end();
+        }
+    }
+
+    @Override
+    protected int getNumSlots() {
+        return numSlots;
+    }
+
+    @Override
+    protected void runOnPartitions(PartitionTask task) {
+        runOnBlocks(blockStartRows.length - 1, numWorkers, (s, b, w) -> task.run(s, inflateBlock(b, w)));
+    }
+
+    private ScaleThreadObject inflateBlock(int block, int worker) {
+        if (isReleased) {
+            throw new IllegalStateException("Compressed contacts were used after being released");
+        }
+        int startRow = blockStartRows[block];
+        int endRow = blockStartRows[block + 1];
+        long firstContact = rowPointers[startRow];
+        int numContacts = (int) (rowPointers[endRow] - firstContact);
+        byte[] raw = rawBuffers[worker];
+        int[] columns = columnBuffers[worker];
+        float[] values = valueBuffers[worker];
+
+        Inflater inflater = inflaters[worker];
+        inflater.reset();
+        inflater.setInput(blocks[block]);
+        int inflated = 0;
+        try {
+            while (inflated < 8 * numContacts && !inflater.finished()) {
+                inflated += inflater.inflate(raw, inflated, 8 * numContacts - inflated);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed contacts are corrupt", e);
+        }
+        if (inflated != 8 * numContacts) {
+            throw new IllegalStateException("Expected " + 8 * numContacts + " bytes of contacts, inflated " + inflated);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(raw, 0, 8 * numContacts).order(ByteOrder.nativeOrder());
+        buffer.asIntBuffer().get(columns, 0, numContacts);
+        buffer.position(4 * numContacts);
+        buffer.asFloatBuffer().get(values, 0, numContacts);
+        for (int r = startRow; r < endRow; r++) {
+            int end = (int) (rowPointers[r + 1] - firstContact);
+            for (int q = (int) (rowPointers[r] - firstContact); q < end; q++) {
+                columns[q] += r;
+            }
+        }
+        return new ScaleThreadObject(rowPointers, columns, values, firstContact, startRow, endRow);
+    }
+}
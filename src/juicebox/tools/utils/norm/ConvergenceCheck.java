@@ -0,0 +1,106 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+import javastraw.reader.block.ContactRecord;
+import javastraw.reader.datastructures.ListOfDoubleArrays;
+import javastraw.reader.datastructures.ListOfIntArrays;
+import javastraw.reader.iterators.IteratorContainer;
+
+import java.util.Iterator;
+
+/**
+ * Cheap checks, made before the KR and SCALE iterations, for matrices too sparse or too fragmented
+ * for them to converge (e.g. tiny contigs, or chrY and chrM at fine resolutions)
+ */
+class ConvergenceCheck {
+
+    // fewer rows with contacts than this are not worth balancing
+    private static final int MIN_NONEMPTY_ROWS = 10;
+    // rows with contacts need at least this many nonzero entries on average
+    private static final double MIN_NONZERO_PER_ROW = 2;
+    // no single row may hold more than this fraction of all contacts
+    private static final double MAX_ROW_SUM_FRACTION = 0.5;
+    // the largest connected group of rows must hold at least this fraction of the rows with contacts
+    private static final double MIN_CONNECTED_FRACTION = 0.5;
+
+    /**
+     * The connectivity check takes a pass over the contacts, so it is only made if the others pass
+     *
+     * @param matrix CSR copy of the contacts, or null to read them from ic
+     * @return why the iterations will not converge, or null if nothing speaks against it
+     */
+    static String findReasonToSkip(RowStatistics rowStatistics, IteratorContainer ic, SparseContactMatrix matrix) {
+        ListOfIntArrays numNonZero = rowStatistics.getNumNonZero();
+        ListOfDoubleArrays rowSums = rowStatistics.getRowSums();
+        long length = numNonZero.getLength();
+        long numRows = 0, numNonZeroEntries = 0;
+        double total = 0, largest = 0;
+        for (long i = 0; i < length; i++) {
+            int count = numNonZero.get(i);
+            if (count == 0) continue;
+            numRows++;
+            numNonZeroEntries += count;
+            double sum = rowSums.get(i);
+            total += sum;
+            largest = Math.max(largest, sum);
+        }
+
+        if (numRows < MIN_NONEMPTY_ROWS) {
+            return "only " + numRows + " rows have contacts";
+        }
+        double nonZeroPerRow = (double) numNonZeroEntries / numRows;
+        if (nonZeroPerRow < MIN_NONZERO_PER_ROW) {
+            return String.format("rows with contacts have %.2f nonzero entries on average", nonZeroPerRow);
+        }
+        if (largest > MAX_ROW_SUM_FRACTION * total) {
+            return String.format("one row holds %.0f%% of the contacts", 100 * largest / total);
+        }
+
+        if (length >= SparseContactMatrix.MAX_ARRAY_LENGTH) return null;
+        boolean[] isNonEmpty = new boolean[(int) length];
+        for (int i = 0; i < length; i++) {
+            isNonEmpty[i] = numNonZero.get(i) > 0;
+        }
+        int connected = getComponents(ic, matrix, (int) length).getLargestSetSize(isNonEmpty);
+        if (connected < MIN_CONNECTED_FRACTION * numRows) {
+            return "the largest connected group has " + connected + " of the " + numRows + " rows with contacts";
+        }
+        return null;
+    }
+
+    private static DisjointSets getComponents(IteratorContainer ic, SparseContactMatrix matrix, int length) {
+        if (matrix != null) {
+            return matrix.getComponents();
+        }
+        DisjointSets components = new DisjointSets(length);
+        Iterator<ContactRecord> iterator = ic.getNewContactRecordIterator();
+        while (iterator.hasNext()) {
+            ContactRecord cr = iterator.next();
+            components.union(cr.getBinX(), cr.getBinY());
+        }
+        return components;
+    }
+}
@@ -57,9 +57,16 @@ public class CustomNormalizationVector extends NormalizationVector {
 
     public NormalizationVector mmbaScaleToVector(IteratorContainer ic) {
 
-        ListOfFloatArrays newNormVector = ZeroScale.scale(ic, data.convertToFloats(), getKey());
-        if (newNormVector != null) {
-            newNormVector = ZeroScale.normalizeVectorByScaleFactor(newNormVector, ic);
+        SparseContactMatrix matrix = SparseContactMatrix.create(ic);
+        ListOfFloatArrays newNormVector;
+        try {
+            newNormVector = ZeroScale.scale(ic, matrix, null, data.convertToFloats(), null, getKey());
+            if (newNormVector != null) {
+                newNormVector = ZeroScale.normalizeVectorByScaleFactor(newNormVector, ic, matrix);
+            }
+        } finally {
+            // give back its share of the compressed cache budget
+            if (matrix != null) matrix.release();
         }
         ListOfDoubleArrays newDoubleNormVector = newNormVector.convertToDoubles();
         return new NormalizationVector(type, chrIdx, unit, resolution, newDoubleNormVector);
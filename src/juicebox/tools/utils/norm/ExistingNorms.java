@@ -0,0 +1,96 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+import javastraw.reader.Dataset;
+import javastraw.reader.basics.Chromosome;
+import javastraw.reader.expected.ExpectedValueFunction;
+import javastraw.reader.expected.ExpectedValueFunctionImpl;
+import javastraw.reader.norm.NormalizationVector;
+import javastraw.reader.type.HiCZoom;
+import javastraw.reader.type.NormalizationType;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Norms already in a .hic file, so that addNorm can keep them and only calculate what is missing.
+ * <p/>
+ * A norm type is complete at a zoom if the file has its expected values there; those are only written
+ * once every chromosome has been normalized (chromosomes that failed simply have no vector).
+ */
+class ExistingNorms {
+
+    private final Dataset ds;
+    private final Map<String, ExpectedValueFunction> expectedValueFunctions = new LinkedHashMap<>();
+
+    ExistingNorms(Dataset ds) {
+        this.ds = ds;
+        Map<String, ExpectedValueFunction> functions = ds.getExpectedValueFunctionMap();
+        if (functions != null) {
+            for (Map.Entry<String, ExpectedValueFunction> entry : functions.entrySet()) {
+                // observed expected values are not part of the norm section
+                if (!entry.getKey().contains("NONE")) {
+                    expectedValueFunctions.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    boolean isComplete(HiCZoom zoom, NormalizationType type) {
+        return expectedValueFunctions.containsKey(ExpectedValueFunctionImpl.getKey(zoom, type));
+    }
+
+    /**
+     * Copy the vectors of every norm type and zoom that was not recalculated to the writer
+     *
+     * @param recalculated keys (as in ExpectedValueFunctionImpl.getKey) of the norm types and zooms that were recalculated
+     * @return expected values of the norm types and zooms that were copied
+     */
+    Map<String, ExpectedValueFunction> copyUnchanged(Set<String> recalculated, NormVectorWriter normVectorWriter) throws IOException {
+        List<NormalizationType> types = ds.getNormalizationTypes();
+        if (types != null) {
+            for (HiCZoom zoom : ds.getAllPossibleResolutions()) {
+                for (NormalizationType type : types) {
+                    if (recalculated.contains(ExpectedValueFunctionImpl.getKey(zoom, type))) continue;
+                    for (Chromosome chr : ds.getChromosomeHandler().getChromosomeArrayWithoutAllByAll()) {
+                        NormalizationVector vector = ds.getNormalizationVector(chr.getIndex(), zoom, type);
+                        if (vector != null && vector.getData() != null) {
+                            normVectorWriter.add(vector.getData().convertToFloats(), chr.getIndex(), type, zoom);
+                        }
+                    }
+                }
+            }
+        }
+
+        Map<String, ExpectedValueFunction> unchanged = new LinkedHashMap<>();
+        for (Map.Entry<String, ExpectedValueFunction> entry : expectedValueFunctions.entrySet()) {
+            if (!recalculated.contains(entry.getKey())) {
+                unchanged.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return unchanged;
+    }
+}
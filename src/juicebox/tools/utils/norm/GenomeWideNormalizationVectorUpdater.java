@@ -39,7 +39,6 @@ import javastraw.reader.type.NormalizationType;
 import javastraw.tools.HiCFileTools;
 import juicebox.HiCGlobals;
 import juicebox.tools.utils.original.ExpectedValueCalculation;
-import org.broad.igv.tdf.BufferedByteWriter;
 import org.broad.igv.util.Pair;
 
 import java.io.IOException;
@@ -123,13 +122,24 @@ public class GenomeWideNormalizationVectorUpdater extends NormVectorUpdater {
     */
 
 
+    /**
+     * @param checkpoint where finished norms are kept in case the run is restarted, and taken from when it is (may be null)
+     */
     public static void updateHicFileForGWfromPreAddNormOnly(Dataset ds, HiCZoom zoom, List<NormalizationType> normalizationsToBuild,
-                                                            Map<NormalizationType, Integer> resolutionsToBuildTo, List<NormalizationVectorIndexEntry> normVectorIndices,
-                                                            List<BufferedByteWriter> normVectorBuffers, List<ExpectedValueCalculation> expectedValueCalculations) throws IOException {
+                                                            Map<NormalizationType, Integer> resolutionsToBuildTo, NormVectorWriter normVectorWriter,
+                                                            List<ExpectedValueCalculation> expectedValueCalculations,
+                                                            NormCheckpoint checkpoint) throws IOException {
         for (NormalizationType normType : normalizationsToBuild) {
             if (NormalizationHandler.isGenomeWideNorm(normType)) {
                 if (zoom.getBinSize() >= resolutionsToBuildTo.get(normType)) {
 
+                    if (checkpoint != null && checkpoint.containsGenomeWide(zoom, normType)) {
+                        ExpectedValueCalculation ev = new ExpectedValueCalculation(ds.getChromosomeHandler(), zoom.getBinSize(), null, normType);
+                        checkpoint.readGenomeWide(zoom, normType, normVectorWriter, ev);
+                        expectedValueCalculations.add(ev);
+                        continue;
+                    }
+
                     if (HiCGlobals.printVerboseComments) {
                         System.out.println("Now Doing " + normType.getLabel());
                     }
@@ -143,13 +153,17 @@ public class GenomeWideNormalizationVectorUpdater extends NormVectorUpdater {
                         Map<Chromosome, NormalizationVector> nvMap = wgVectors.getFirst();
                         List<Chromosome> chromosomes = new ArrayList<>(nvMap.keySet());
                         chromosomes.sort(Comparator.comparingInt(Chromosome::getIndex));
+                        LinkedHashMap<Integer, ListOfFloatArrays> vectors = new LinkedHashMap<>();
                         for (Chromosome chromosome : chromosomes) {
-                            updateNormVectorIndexWithVector(normVectorIndices, normVectorBuffers,
-                                    nvMap.get(chromosome).getData().convertToFloats(), chromosome.getIndex(),
-                                    normType, zoom);
+                            ListOfFloatArrays vector = nvMap.get(chromosome).getData().convertToFloats();
+                            normVectorWriter.add(vector, chromosome.getIndex(), normType, zoom);
+                            vectors.put(chromosome.getIndex(), vector);
                         }
 
                         expectedValueCalculations.add(wgVectors.getSecond());
+                        if (checkpoint != null) {
+                            checkpoint.saveGenomeWide(zoom, normType, vectors, wgVectors.getSecond());
+                        }
                     }
                 }
             }
@@ -170,7 +184,21 @@ public class GenomeWideNormalizationVectorUpdater extends NormVectorUpdater {
                 includeIntraData, HiCGlobals.USE_ITERATOR_NOT_ALL_IN_RAM, HiCGlobals.CHECK_RAM_USAGE);
 
         NormalizationCalculations calculations = new NormalizationCalculations(ic);
-        ListOfFloatArrays vector = calculations.getNorm(norm);
+        if (!calculations.isEnoughMemory()) {
+            ic.clear();
+            calculations = NormalizationCalculations.createOutOfCore(ListOfListGenerator.createForWholeGenome(dataset,
+                    chromosomeHandler, zoom, includeIntraData, true, HiCGlobals.CHECK_RAM_USAGE));
+            if (calculations == null) {
+                System.err.println("Not enough memory, skipping genome-wide " + norm.getLabel() + " at " + zoom);
+                return null;
+            }
+        }
+        ListOfFloatArrays vector;
+        try {
+            vector = calculations.getNorm(norm);
+        } finally {
+            calculations.release();
+        }
         if (vector == null) {
             return null;
         }
@@ -0,0 +1,89 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+import javastraw.reader.DatasetReaderV2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Identifies a version of a .hic file, so that work saved for it (the sidecar file of a shard, a checkpoint journal)
+ * is not applied to another one.
+ * <p/>
+ * The length of the file alone can match by chance, so this also hashes where the norm section and the norm
+ * vector index start, the header (which points to the master index), and the bytes at the start of the norm
+ * section and at the end of the file, which change whenever norms are written. Only a few blocks are read.
+ */
+class HicFingerprint {
+
+    // bytes hashed at each place sampled
+    private static final int SAMPLE_BYTES = 1 << 16;
+
+    /**
+     * @param reader reader of the file, already read
+     * @return hex digest of the file as it is now
+     */
+    static String get(String path, DatasetReaderV2 reader) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r")) {
+            long length = raf.length();
+            long normFilePosition = reader.getNormFilePosition();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(length);
+            out.writeLong(normFilePosition);
+            out.writeLong(reader.getNviHeaderPosition());
+            writeSample(raf, 0, out);
+            writeSample(raf, normFilePosition, out);
+            writeSample(raf, length - SAMPLE_BYTES, out);
+            out.flush();
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder fingerprint = new StringBuilder();
+            for (byte b : digest.digest(bytes.toByteArray())) {
+                fingerprint.append(String.format("%02x", b));
+            }
+            return fingerprint.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Copy up to SAMPLE_BYTES of the file from the position (clamped to the file)
+     */
+    private static void writeSample(RandomAccessFile raf, long position, DataOutputStream out) throws IOException {
+        long start = Math.max(0, Math.min(position, raf.length()));
+        byte[] sample = new byte[(int) Math.min(SAMPLE_BYTES, raf.length() - start)];
+        raf.seek(start);
+        raf.readFully(sample);
+        out.writeInt(sample.length);
+        out.write(sample);
+    }
+}
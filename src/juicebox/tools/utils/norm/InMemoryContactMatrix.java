@@ -0,0 +1,190 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+import javastraw.reader.block.ContactRecord;
+import javastraw.reader.iterators.IteratorContainer;
+import juicebox.HiCGlobals;
+import juicebox.tools.utils.norm.final2.ScaleThreadObject;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * CSR matrix held in two heap arrays; the rows are split into one partition per thread,
+ * with roughly equal numbers of contacts in each (or into fixed blocks, if reductions are deterministic).
+ */
+class InMemoryContactMatrix extends SparseContactMatrix {
+
+    // below this, starting threads costs more than the pass itself
+    private static final int MIN_CONTACTS_PER_PARTITION = 250000;
+
+    private final int[] columns;
+    private final float[] values;
+    private final ScaleThreadObject[] partitions;
+    private final int numSlots;
+
+    private InMemoryContactMatrix(int matrixSize, long[] rowPointers, int[] columns, float[] values, int numThreads) {
+        super(matrixSize, rowPointers, numThreads);
+        this.columns = columns;
+        this.values = values;
+        this.partitions = HiCGlobals.DETERMINISTIC_REDUCTIONS ? createBlockPartitions() : createPartitions();
+        this.numSlots = getNumSlots(partitions.length, partitions.length);
+    }
+
+    static SparseContactMatrix load(IteratorContainer ic, int numThreads) {
+        if (HiCGlobals.USE_ITERATOR_NOT_ALL_IN_RAM) return null;
+        long matrixSize = ic.getMatrixSize();
+        if (matrixSize >= MAX_ARRAY_LENGTH) return null;
+        int k = (int) matrixSize;
+
+        long[] rowPointers = new long[k + 1];
+        Iterator<ContactRecord> iterator = ic.getNewContactRecordIterator();
+        while (iterator.hasNext()) {
+            rowPointers[iterator.next().getBinX() + 1]++;
+        }
+        for (int r = 0; r < k; r++) {
+            rowPointers[r + 1] += rowPointers[r];
+        }
+        long numContacts = rowPointers[k];
+        if (numContacts >= MAX_ARRAY_LENGTH || !isEnoughMemory(numContacts, matrixSize)) {
+            return null;
+        }
+
+        int[] columns = new int[(int) numContacts];
+        float[] values = new float[(int) numContacts];
+        long[] nextIndex = Arrays.copyOf(rowPointers, k);
+        iterator = ic.getNewContactRecordIterator();
+        while (iterator.hasNext()) {
+            ContactRecord cr = iterator.next();
+            int index = (int) nextIndex[cr.getBinX()]++;
+            columns[index] = cr.getBinY();
+            values[index] = cr.getCounts();
+        }
+
+        return new InMemoryContactMatrix(k, rowPointers, columns, values, numThreads);
+    }
+
+    /**
+     * Wrap contacts that are already in CSR format, e.g. generated ones
+     */
+    static SparseContactMatrix fromCSR(int matrixSize, long[] rowPointers, int[] columns, float[] values, int numThreads) {
+        return new InMemoryContactMatrix(matrixSize, rowPointers, columns, values, numThreads);
+    }
+
+    @Override
+    public SparseContactMatrix aggregate(int factor) {
+        int k = (matrixSize - 1) / factor + 1;
+        // the coarse row a column was last seen in, and where its entry is
+        int[] lastRow = new int[k];
+        int[] entry = new int[k];
+
+        long[] newRowPointers = new long[k + 1];
+        Arrays.fill(lastRow, -1);
+        for (int r = 0; r < k; r++) {
+            long count = 0;
+            int end = (int) Math.min(matrixSize, (long) (r + 1) * factor);
+            for (int i = r * factor; i < end; i++) {
+                for (int q = (int) rowPointers[i]; q < rowPointers[i + 1]; q++) {
+                    int c = columns[q] / factor;
+                    if (lastRow[c] != r) {
+                        lastRow[c] = r;
+                        count++;
+                    }
+                }
+            }
+            newRowPointers[r + 1] = newRowPointers[r] + count;
+        }
+
+        int numContacts = (int) newRowPointers[k];
+        int[] newColumns = new int[numContacts];
+        float[] newValues = new float[numContacts];
+        Arrays.fill(lastRow, -1);
+        for (int r = 0; r < k; r++) {
+            int next = (int) newRowPointers[r];
+            int end = (int) Math.min(matrixSize, (long) (r + 1) * factor);
+            for (int i = r * factor; i < end; i++) {
+                for (int q = (int) rowPointers[i]; q < rowPointers[i + 1]; q++) {
+                    int c = columns[q] / factor;
+                    if (lastRow[c] != r) {
+                        lastRow[c] = r;
+                        entry[c] = next;
+                        newColumns[next] = c;
+                        newValues[next++] = values[q];
+                    } else {
+                        newValues[entry[c]] += values[q];
+                    }
+                }
+            }
+        }
+
+        return new InMemoryContactMatrix(k, newRowPointers, newColumns, newValues, numThreads);
+    }
+
+    private static boolean isEnoughMemory(long numContacts, long matrixSize) {
+        // 8 bytes per contact, plus the temporary fill pointers
+        long bytesNeeded = 8 * numContacts + 8 * matrixSize;
+        return bytesNeeded < getAvailableMemory();
+    }
+
+    private ScaleThreadObject[] createPartitions() {
+        long numContacts = values.length;
+        int numPartitions = (int) Math.max(1, Math.min(numThreads, numContacts / MIN_CONTACTS_PER_PARTITION));
+        ScaleThreadObject[] newPartitions = new ScaleThreadObject[numPartitions];
+        int startRow = 0;
+        for (int p = 0; p < numPartitions; p++) {
+            int endRow = matrixSize;
+            if (p < numPartitions - 1) {
+                long target = (p + 1) * numContacts / numPartitions;
+                endRow = startRow;
+                while (endRow < matrixSize && rowPointers[endRow] < target) {
+                    endRow++;
+                }
+            }
+            newPartitions[p] = new ScaleThreadObject(rowPointers, columns, values, 0, startRow, endRow);
+            startRow = endRow;
+        }
+        return newPartitions;
+    }
+
+    private ScaleThreadObject[] createBlockPartitions() {
+        int[] blockStartRows = createBlocks(rowPointers, matrixSize, DETERMINISTIC_CONTACTS_PER_BLOCK);
+        ScaleThreadObject[] newPartitions = new ScaleThreadObject[blockStartRows.length - 1];
+        for (int b = 0; b < newPartitions.length; b++) {
+            newPartitions[b] = new ScaleThreadObject(rowPointers, columns, values, 0, blockStartRows[b], blockStartRows[b + 1]);
+        }
+        return newPartitions;
+    }
+
+    @Override
+    protected int getNumSlots() {
+        return numSlots;
+    }
+
+    @Override
+    protected void runOnPartitions(PartitionTask task) {
+        runOnBlocks(partitions.length, numSlots, (s, b, w) -> task.run(s, partitions[b]));
+    }
+}
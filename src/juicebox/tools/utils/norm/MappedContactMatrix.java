@@ -0,0 +1,205 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+import javastraw.reader.block.ContactRecord;
+import javastraw.reader.iterators.IteratorContainer;
+import juicebox.HiCGlobals;
+import juicebox.tools.utils.norm.final2.ScaleThreadObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * CSR matrix whose contacts are spilled to a memory-mapped temporary file, for matrices
+ * that do not fit on the heap. Only the row pointers (and the vectors of the norm calculations)
+ * stay on the heap.
+ * <p/>
+ * The file holds the columns of all contacts (4-byte ints) followed by their values (4-byte floats),
+ * both in row order. The rows are cut into blocks of about CONTACTS_PER_BLOCK contacts, and every pass
+ * walks the blocks from the start of the file to the end, copying each block into the buffers of its worker
+ * before running on it; the pages are thus read sequentially and the OS can drop them once they are used.
+ */
+class MappedContactMatrix extends SparseContactMatrix {
+
+    private static final int CONTACTS_PER_BLOCK = 1 << 22;
+    // 1 GB, well under the 2 GB limit of a mapping; a multiple of 4 so no int or float is split across segments
+    private static final long BYTES_PER_SEGMENT = 1L << 30;
+
+    private final MappedByteBuffer[] segments;
+    private final long valuesPosition;
+    private final int[] blockStartRows;
+    private final int numWorkers;
+    private final int numSlots;
+    private final int[][] columnBuffers;
+    private final float[][] valueBuffers;
+
+    private MappedContactMatrix(int matrixSize, long[] rowPointers, MappedByteBuffer[] segments,
+                                int[] blockStartRows, int blockLength, int numWorkers, int numThreads) {
+        super(matrixSize, rowPointers, numThreads);
+        this.segments = segments;
+        this.valuesPosition = 4 * rowPointers[matrixSize];
+        this.blockStartRows = blockStartRows;
+        this.numWorkers = numWorkers;
+        this.numSlots = getNumSlots(blockStartRows.length - 1, numWorkers);
+        this.columnBuffers = new int[numWorkers][blockLength];
+        this.valueBuffers = new float[numWorkers][blockLength];
+    }
+
+    /**
+     * @return memory for the buffers a worker reads a block into, for a matrix of about numContacts contacts
+     */
+    static long getBufferBytesPerWorker(long numContacts) {
+        return 8L * Math.min(getContactsPerBlock(CONTACTS_PER_BLOCK), numContacts);
+    }
+
+    /**
+     * Write the contacts of an iterator container to a memory-mapped CSR file.
+     * The iterator container should stream from the .hic file, since the contacts are read twice.
+     *
+     * @return the matrix, or null if the vectors needed to normalize it will not fit in memory
+     * or the file could not be written
+     */
+    static SparseContactMatrix spill(IteratorContainer ic, int numThreads) {
+        long matrixSize = ic.getMatrixSize();
+        if (matrixSize >= MAX_ARRAY_LENGTH || 2 * 8 * matrixSize >= getAvailableMemory()) return null;
+        int k = (int) matrixSize;
+
+        long[] rowPointers = new long[k + 1];
+        Iterator<ContactRecord> iterator = ic.getNewContactRecordIterator();
+        while (iterator.hasNext()) {
+            rowPointers[iterator.next().getBinX() + 1]++;
+        }
+        int maxRowLength = 0;
+        for (int r = 0; r < k; r++) {
+            maxRowLength = (int) Math.max(maxRowLength, rowPointers[r + 1]);
+            rowPointers[r + 1] += rowPointers[r];
+        }
+
+        int contactsPerBlock = getContactsPerBlock(CONTACTS_PER_BLOCK);
+        int[] blockStartRows = createBlocks(rowPointers, k, contactsPerBlock);
+        int numBlocks = blockStartRows.length - 1;
+        int blockLength = Math.max(maxRowLength, (int) Math.min(contactsPerBlock, rowPointers[k]));
+        numThreads = Math.max(1, numThreads);
+        int numWorkers = getNumWorkers(k, 8L * blockLength, Math.min(numThreads, numBlocks), numBlocks);
+        if (numWorkers < 1) return null;
+
+        MappedByteBuffer[] segments;
+        try {
+            segments = writeContacts(ic, rowPointers, k);
+        } catch (IOException e) {
+            System.err.println("Unable to write contacts to a temporary file: " + e.getLocalizedMessage());
+            return null;
+        }
+        return new MappedContactMatrix(k, rowPointers, segments, blockStartRows, blockLength, numWorkers, numThreads);
+    }
+
+    private static MappedByteBuffer[] writeContacts(IteratorContainer ic, long[] rowPointers, int matrixSize) throws IOException {
+        long numContacts = rowPointers[matrixSize];
+        long fileLength = 8 * numContacts;
+        File file = File.createTempFile("contacts", ".bin", HiCGlobals.NORM_TMP_DIRECTORY);
+        MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((fileLength + BYTES_PER_SEGMENT - 1) / BYTES_PER_SEGMENT)];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(fileLength);
+            FileChannel channel = raf.getChannel();
+            for (int s = 0; s < segments.length; s++) {
+                long position = s * BYTES_PER_SEGMENT;
+                segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.min(BYTES_PER_SEGMENT, fileLength - position));
+                segments[s].order(ByteOrder.nativeOrder());
+            }
+        } finally {
+            // the mappings stay valid after the file is unlinked; the space is freed once they are collected
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+
+        long valuesPosition = 4 * numContacts;
+        long[] nextIndex = Arrays.copyOf(rowPointers, matrixSize);
+        Iterator<ContactRecord> iterator = ic.getNewContactRecordIterator();
+        while (iterator.hasNext()) {
+            ContactRecord cr = iterator.next();
+            long index = nextIndex[cr.getBinX()]++;
+            long position = 4 * index;
+            segments[(int) (position / BYTES_PER_SEGMENT)].putInt((int) (position % BYTES_PER_SEGMENT), cr.getBinY());
+            position += valuesPosition;
+            segments[(int) (position / BYTES_PER_SEGMENT)].putFloat((int) (position % BYTES_PER_SEGMENT), cr.getCounts());
+        }
+        return segments;
+    }
+
+    @Override
+    protected int getNumSlots() {
+        return numSlots;
+    }
+
+    @Override
+    protected void runOnPartitions(PartitionTask task) {
+        runOnBlocks(blockStartRows.length - 1, numWorkers, (s, b, w) -> task.run(s, loadBlock(b, w)));
+    }
+
+    private ScaleThreadObject loadBlock(int block, int worker) {
+        int startRow = blockStartRows[block];
+        int endRow = blockStartRows[block + 1];
+        long firstContact = rowPointers[startRow];
+        int numContacts = (int) (rowPointers[endRow] - firstContact);
+        int[] columns = columnBuffers[worker];
+        float[] values = valueBuffers[worker];
+
+        int copied = 0;
+        while (copied < numContacts) {
+            long position = 4 * (firstContact + copied);
+            ByteBuffer segment = getSegmentView(position);
+            int length = Math.min(numContacts - copied, segment.remaining() / 4);
+            segment.asIntBuffer().get(columns, copied, length);
+            copied += length;
+        }
+        copied = 0;
+        while (copied < numContacts) {
+            long position = valuesPosition + 4 * (firstContact + copied);
+            ByteBuffer segment = getSegmentView(position);
+            int length = Math.min(numContacts - copied, segment.remaining() / 4);
+            segment.asFloatBuffer().get(values, copied, length);
+            copied += length;
+        }
+        return new ScaleThreadObject(rowPointers, columns, values, firstContact, startRow, endRow);
+    }
+
+    /**
+     * @return independent view of the segment holding the position, starting at that position
+     */
+    private ByteBuffer getSegmentView(long position) {
+        ByteBuffer view = segments[(int) (position / BYTES_PER_SEGMENT)].duplicate();
+        view.position((int) (position % BYTES_PER_SEGMENT));
+        return view.order(ByteOrder.nativeOrder());
+    }
+}
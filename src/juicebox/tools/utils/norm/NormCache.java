@@ -0,0 +1,181 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+import javastraw.reader.datastructures.ListOfFloatArrays;
+import javastraw.reader.type.HiCZoom;
+import javastraw.reader.type.NormalizationType;
+import juicebox.HiCGlobals;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.Supplier;
+
+/**
+ * On-disk cache of calculated norm vectors, so that re-running addNorm on the same file
+ * does not recalculate the norms of matrices that have not changed.
+ * <p/>
+ * Vectors are keyed by a hash of the matrix contents, the zoom, the norm type and the options that change
+ * the result. They are stored before being scaled by the sum factor; failures are cached too.
+ */
+public class NormCache {
+
+    // bump when the calculations change, so that old vectors are not reused
+    private static final int VERSION = 1;
+    private static final int MAGIC = 0x4E524D43;
+    private static final String EXTENSION = ".norm";
+
+    private final File directory;
+
+    public NormCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return cache in the directory given on the command line, or null if there is none
+     */
+    public static NormCache create() {
+        File directory = HiCGlobals.NORM_CACHE_DIRECTORY;
+        if (directory == null) return null;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.err.println("Could not create norm cache directory " + directory + "; norms will not be cached");
+            return null;
+        }
+        return new NormCache(directory);
+    }
+
+    /**
+     * @param calculate calculates the vector if it is not in the cache; may return null for a failed norm
+     * @return the cached or calculated vector
+     */
+    public ListOfFloatArrays get(NormalizationCalculations nc, HiCZoom zoom, NormalizationType type,
+                                 Supplier<ListOfFloatArrays> calculate) {
+        SparseContactMatrix matrix = nc.getMatrix();
+        if (matrix == null) {
+            // there is no cheap way to identify the contacts of an iterator container
+            return calculate.get();
+        }
+
+        File file = new File(directory, getKey(matrix.getContentHash(), zoom, type) + EXTENSION);
+        if (file.exists()) {
+            try {
+                return read(file, nc.getMatrixSize());
+            } catch (IOException e) {
+                System.err.println("Ignoring unreadable cached norm " + file + ": " + e.getMessage());
+            }
+        }
+
+        ListOfFloatArrays vector = calculate.get();
+        try {
+            write(file, vector);
+        } catch (IOException e) {
+            System.err.println("Could not cache norm in " + file + ": " + e.getMessage());
+        }
+        return vector;
+    }
+
+    static String getKey(long[] contentHash, HiCZoom zoom, NormalizationType type) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(VERSION);
+            for (long value : contentHash) {
+                out.writeLong(value);
+            }
+            out.writeUTF(zoom.getUnit().toString());
+            out.writeInt(zoom.getBinSize());
+            out.writeUTF(type.toString());
+            out.writeBoolean(HiCGlobals.WARM_START_SCALE);
+            out.writeBoolean(HiCGlobals.USE_QUANTILE_SKETCH);
+            out.writeBoolean(HiCGlobals.ACCELERATE_SCALE);
+            out.writeBoolean(HiCGlobals.MIXED_PRECISION_KR);
+            out.writeBoolean(HiCGlobals.ABORT_NON_CONVERGING);
+            out.writeBoolean(HiCGlobals.DETERMINISTIC_REDUCTIONS);
+            out.flush();
+
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest(bytes.toByteArray())) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the vector, or null if a failure was cached
+     */
+    private static ListOfFloatArrays read(File file, long expectedLength) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a cached norm");
+            }
+            long length = in.readLong();
+            if (length < 0) return null;
+            if (length != expectedLength) {
+                throw new IOException("length " + length + " instead of " + expectedLength);
+            }
+            ListOfFloatArrays vector = new ListOfFloatArrays(length);
+            for (float[] array : vector.getValues()) {
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = in.readFloat();
+                }
+            }
+            return vector;
+        }
+    }
+
+    /**
+     * Write to a temporary file first, so that concurrent or interrupted runs never leave a partial vector behind
+     */
+    private static void write(File file, ListOfFloatArrays vector) throws IOException {
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeLong(vector == null ? -1 : vector.getLength());
+                if (vector != null) {
+                    for (float[] array : vector.getValues()) {
+                        for (float val : array) {
+                            out.writeFloat(val);
+                        }
+                    }
+                }
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+import javastraw.reader.datastructures.ListOfFloatArrays;
+import javastraw.reader.expected.ExpectedValueFunctionImpl;
+import javastraw.reader.type.HiCZoom;
+import javastraw.reader.type.NormalizationHandler;
+import javastraw.reader.type.NormalizationType;
+import juicebox.tools.utils.original.ExpectedValueCalculation;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Journal of the norms finished so far by a long addNorm run, so that a restarted run picks up where it stopped.
+ * <p/>
+ * Each record holds the norms of one chromosome at one zoom (with its contribution to the expected values and
+ * whether KR or SCALE failed for it), or one genome-wide norm at one zoom. A record is only counted once
+ * its length has been written after it; a torn record at the end is dropped when the journal is opened.
+ * The journal is only used for the same .hic file and settings it was started with.
+ */
+class NormCheckpoint implements Closeable {
+
+    private static final int MAGIC = 0x4E524D4A;
+    private static final int VERSION = 2;
+    private static final byte CHROMOSOME = 1;
+    private static final byte GENOME_WIDE = 2;
+    private static final byte KR_FAILED = 1;
+    private static final byte SCALE_FAILED = 2;
+    // kind and length of each record
+    private static final int RECORD_HEADER_SIZE = 9;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final NormalizationHandler normalizationHandler;
+    // position of the latest record of each chromosome and zoom, and of each genome-wide norm and zoom
+    private final Map<String, Long> chromosomeRecords = new HashMap<>();
+    private final Map<String, Byte> chromosomeFailures = new HashMap<>();
+    private final Map<String, Long> genomeWideRecords = new HashMap<>();
+
+    private NormCheckpoint(File file, NormalizationHandler normalizationHandler) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.normalizationHandler = normalizationHandler;
+    }
+
+    /**
+     * @param hicFingerprint identifies the .hic file as it is now (see {@link HicFingerprint})
+     * @param settings       everything else that changes the norms calculated
+     * @return the journal at the path, started over if it was for another file or other settings
+     */
+    static NormCheckpoint open(File file, NormalizationHandler normalizationHandler, String hicFingerprint,
+                               String settings) throws IOException {
+        NormCheckpoint checkpoint = new NormCheckpoint(file, normalizationHandler);
+        try {
+            if (!checkpoint.resume(hicFingerprint, settings)) {
+                checkpoint.start(hicFingerprint, settings);
+            }
+        } catch (IOException e) {
+            checkpoint.close();
+            throw e;
+        }
+        return checkpoint;
+    }
+
+    /**
+     * @return whether the journal was for the same file and settings
+     */
+    private boolean resume(String hicFingerprint, String settings) throws IOException {
+        if (raf.length() == 0) return false;
+        try {
+            if (raf.readInt() != MAGIC || raf.readInt() != VERSION || !raf.readUTF().equals(hicFingerprint)
+                    || !raf.readUTF().equals(settings)) {
+                System.out.println("Ignoring checkpoint " + file + " from another file or other settings");
+                return false;
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+
+        long position = raf.getFilePointer();
+        int numRecords = 0;
+        while (position + RECORD_HEADER_SIZE <= raf.length()) {
+            raf.seek(position);
+            byte kind = raf.readByte();
+            long length = raf.readLong();
+            if (length < 0 || position + RECORD_HEADER_SIZE + length > raf.length()) break;
+            if (kind == CHROMOSOME) {
+                String key = getKey(readZoom(raf), raf.readInt());
+                chromosomeRecords.put(key, position);
+                chromosomeFailures.put(key, raf.readByte());
+            } else if (kind == GENOME_WIDE) {
+                HiCZoom zoom = readZoom(raf);
+                genomeWideRecords.put(ExpectedValueFunctionImpl.getKey(zoom, getType(raf.readUTF())), position);
+            } else {
+                break;
+            }
+            numRecords++;
+            position += RECORD_HEADER_SIZE + length;
+        }
+
+        // drop whatever was being written when the run stopped
+        raf.setLength(position);
+        System.out.println("Resuming from checkpoint " + file + " with " + numRecords + " finished norms");
+        return true;
+    }
+
+    private void start(String hicFingerprint, String settings) throws IOException {
+        chromosomeRecords.clear();
+        chromosomeFailures.clear();
+        genomeWideRecords.clear();
+        raf.setLength(0);
+        raf.seek(0);
+        raf.writeInt(MAGIC);
+        raf.writeInt(VERSION);
+        raf.writeUTF(hicFingerprint);
+        raf.writeUTF(settings);
+        raf.getChannel().force(false);
+    }
+
+    synchronized boolean contains(HiCZoom zoom, int chrIdx) {
+        return chromosomeRecords.containsKey(getKey(zoom, chrIdx));
+    }
+
+    synchronized boolean containsGenomeWide(HiCZoom zoom, NormalizationType type) {
+        return genomeWideRecords.containsKey(ExpectedValueFunctionImpl.getKey(zoom, type));
+    }
+
+    /**
+     * @param type KR or SCALE
+     * @return whether the norm had failed for the chromosome when it was checkpointed at the zoom
+     */
+    synchronized boolean hasFailed(HiCZoom zoom, int chrIdx, NormalizationType type) {
+        Byte failures = chromosomeFailures.get(getKey(zoom, chrIdx));
+        if (failures == null) return false;
+        byte flag = type.equals(NormalizationHandler.KR) ? KR_FAILED : SCALE_FAILED;
+        return (failures & flag) != 0;
+    }
+
+    /**
+     * @param expectedValues expected value calculation of each norm type at the zoom
+     */
+    synchronized ChromosomeNorms readChromosome(HiCZoom zoom, int chrIdx,
+                                                Function<NormalizationType, ExpectedValueCalculation> expectedValues) throws IOException {
+        DataInputStream in = openRecord(chromosomeRecords.get(getKey(zoom, chrIdx)));
+        readZoom(in);
+        in.readInt();
+        in.readByte();
+        ChromosomeNorms norms = new ChromosomeNorms(chrIdx, zoom);
+        norms.setNumberOfContacts(in.readLong());
+        int numNorms = in.readInt();
+        for (int i = 0; i < numNorms; i++) {
+            NormalizationType type = getType(in.readUTF());
+            ListOfFloatArrays vector = readVector(in);
+            double[] distanceSums = null;
+            int numDistances = in.readInt();
+            if (numDistances >= 0) {
+                distanceSums = new double[numDistances];
+                for (int d = 0; d < numDistances; d++) {
+                    distanceSums[d] = in.readDouble();
+                }
+            }
+            norms.add(type, vector, expectedValues.apply(type), distanceSums);
+        }
+        return norms;
+    }
+
+    synchronized void saveChromosome(ChromosomeNorms norms, boolean krFailed, boolean scaleFailed) throws IOException {
+        byte failures = (byte) ((krFailed ? KR_FAILED : 0) | (scaleFailed ? SCALE_FAILED : 0));
+        long position = writeRecord(CHROMOSOME, out -> {
+            writeZoom(out, norms.getZoom());
+            out.writeInt(norms.getChrIdx());
+            out.writeByte(failures);
+            out.writeLong(norms.getNumberOfContacts());
+            List<NormalizationType> types = norms.getTypes();
+            out.writeInt(types.size());
+            for (int i = 0; i < types.size(); i++) {
+                out.writeUTF(types.get(i).toString());
+                writeVector(out, norms.getVectors().get(i));
+                double[] distanceSums = norms.getDistanceSums().get(i);
+                out.writeInt(distanceSums == null ? -1 : distanceSums.length);
+                if (distanceSums != null) {
+                    for (double sum : distanceSums) {
+                        out.writeDouble(sum);
+                    }
+                }
+            }
+        });
+        String key = getKey(norms.getZoom(), norms.getChrIdx());
+        chromosomeRecords.put(key, position);
+        chromosomeFailures.put(key, failures);
+    }
+
+    /**
+     * Write the vectors of the genome-wide norm to the writer, and add its expected values to the calculation
+     */
+    synchronized void readGenomeWide(HiCZoom zoom, NormalizationType type, NormVectorWriter normVectorWriter,
+                                     ExpectedValueCalculation ev) throws IOException {
+        DataInputStream in = openRecord(genomeWideRecords.get(ExpectedValueFunctionImpl.getKey(zoom, type)));
+        readZoom(in);
+        in.readUTF();
+        int numVectors = in.readInt();
+        for (int i = 0; i < numVectors; i++) {
+            int chrIdx = in.readInt();
+            normVectorWriter.add(readVector(in), chrIdx, type, zoom);
+        }
+
+        Map<Integer, Double> counts = new HashMap<>();
+        int numCounts = in.readInt();
+        for (int i = 0; i < numCounts; i++) {
+            int chrIdx = in.readInt();
+            counts.put(chrIdx, in.readDouble());
+        }
+        double[] distanceSums = new double[in.readInt()];
+        for (int d = 0; d < distanceSums.length; d++) {
+            distanceSums[d] = in.readDouble();
+        }
+        ev.addCounts(counts, distanceSums);
+    }
+
+    /**
+     * @param vectors vector of each chromosome index, in the order they are written
+     */
+    synchronized void saveGenomeWide(HiCZoom zoom, NormalizationType type, LinkedHashMap<Integer, ListOfFloatArrays> vectors,
+                                     ExpectedValueCalculation ev) throws IOException {
+        long position = writeRecord(GENOME_WIDE, out -> {
+            writeZoom(out, zoom);
+            out.writeUTF(type.toString());
+            out.writeInt(vectors.size());
+            for (Map.Entry<Integer, ListOfFloatArrays> entry : vectors.entrySet()) {
+                out.writeInt(entry.getKey());
+                writeVector(out, entry.getValue());
+            }
+
+            Map<Integer, Double> counts = ev.getChromosomeCounts();
+            out.writeInt(counts.size());
+            for (Map.Entry<Integer, Double> entry : counts.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeDouble(entry.getValue());
+            }
+            double[] distanceSums = ev.getDistanceSums();
+            out.writeInt(distanceSums.length);
+            for (double sum : distanceSums) {
+                out.writeDouble(sum);
+            }
+        });
+        genomeWideRecords.put(ExpectedValueFunctionImpl.getKey(zoom, type), position);
+    }
+
+    /**
+     * Close and delete the journal, once the norms have been written to the .hic file
+     */
+    void finish() throws IOException {
+        close();
+        if (!file.delete()) {
+            System.err.println("Could not delete checkpoint " + file);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        raf.close();
+    }
+
+    /**
+     * Append a record, and only write its length once its contents are on disk
+     *
+     * @return position of the record
+     */
+    private long writeRecord(byte kind, RecordContents contents) throws IOException {
+        long start = raf.length();
+        raf.seek(start);
+        raf.writeByte(kind);
+        raf.writeLong(-1);
+
+        // not closed, as that would close the file
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(raf.getChannel()), BUFFER_SIZE));
+        contents.write(out);
+        out.flush();
+        long end = raf.getChannel().position();
+        raf.getChannel().force(false);
+
+        raf.seek(start + 1);
+        raf.writeLong(end - start - RECORD_HEADER_SIZE);
+        raf.getChannel().force(false);
+        raf.seek(end);
+        return start;
+    }
+
+    /**
+     * @return stream over the contents of the record at the position
+     */
+    private DataInputStream openRecord(long position) throws IOException {
+        raf.seek(position + RECORD_HEADER_SIZE);
+        // not closed, as that would close the file
+        return new DataInputStream(new BufferedInputStream(Channels.newInputStream(raf.getChannel()), BUFFER_SIZE));
+    }
+
+    private NormalizationType getType(String label) {
+        return normalizationHandler.getNormTypeFromString(label);
+    }
+
+    private static String getKey(HiCZoom zoom, int chrIdx) {
+        return zoom.getUnit() + "_" + zoom.getBinSize() + "_" + chrIdx;
+    }
+
+    private static void writeZoom(DataOutput out, HiCZoom zoom) throws IOException {
+        out.writeUTF(zoom.getUnit().toString());
+        out.writeInt(zoom.getBinSize());
+    }
+
+    private static HiCZoom readZoom(DataInput in) throws IOException {
+        HiCZoom.HiCUnit unit = HiCZoom.HiCUnit.valueOf(in.readUTF());
+        return new HiCZoom(unit, in.readInt());
+    }
+
+    private static void writeVector(DataOutput out, ListOfFloatArrays vector) throws IOException {
+        out.writeLong(vector.getLength());
+        for (float[] array : vector.getValues()) {
+            for (float val : array) {
+                out.writeFloat(val);
+            }
+        }
+    }
+
+    private static ListOfFloatArrays readVector(DataInput in) throws IOException {
+        ListOfFloatArrays vector = new ListOfFloatArrays(in.readLong());
+        for (float[] array : vector.getValues()) {
+            for (int i = 0; i < array.length; i++) {
+                array[i] = in.readFloat();
+            }
+        }
+        return vector;
+    }
+
+    private interface RecordContents {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+import javastraw.reader.Dataset;
+import javastraw.reader.DatasetReaderV2;
+import javastraw.reader.basics.Chromosome;
+import javastraw.reader.basics.ChromosomeHandler;
+import javastraw.reader.expected.ExpectedValueFunction;
+import javastraw.reader.expected.ExpectedValueFunctionImpl;
+import javastraw.reader.type.HiCZoom;
+import javastraw.reader.type.NormalizationHandler;
+import javastraw.reader.type.NormalizationType;
+import juicebox.HiCGlobals;
+import juicebox.tools.utils.original.ExpectedValueCalculation;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * One of several addNorm processes that split the norms of a .hic file between them.
+ * <p/>
+ * Each shard normalizes its own chromosomes (at every zoom, so failures and warm starts carry over as usual)
+ * and its share of the genome-wide norms, and writes the vectors and its part of the expected values to
+ * a sidecar file instead of the .hic file. {@link #merge} then writes the norm section from all the sidecars.
+ */
+public class NormShard {
+
+    private static final int MAGIC = 0x4E524D53;
+    private static final int VERSION = 2;
+
+    // 0-based
+    private final int index;
+    private final int numShards;
+    private final File file;
+    // genome-wide norms seen so far, to hand them out in turn
+    private int numGenomeWideNorms = 0;
+
+    public NormShard(int index, int numShards, File file) {
+        if (numShards < 1 || index < 0 || index >= numShards) {
+            throw new IllegalArgumentException("Invalid shard " + (index + 1) + " of " + numShards);
+        }
+        this.index = index;
+        this.numShards = numShards;
+        this.file = file;
+    }
+
+    /**
+     * @param spec   shard number and number of shards, as in 2/8 (numbered from 1)
+     * @param output sidecar file, or null for one next to the .hic file
+     */
+    public static NormShard create(String spec, String output, String hicPath) {
+        String[] tokens = spec.split("/");
+        if (tokens.length != 2) {
+            throw new IllegalArgumentException("Shard should be given as <shard>/<number of shards>, not " + spec);
+        }
+        int index = Integer.parseInt(tokens[0].trim()) - 1;
+        int numShards = Integer.parseInt(tokens[1].trim());
+        if (output == null) {
+            output = hicPath + ".shard" + (index + 1) + "of" + numShards + ".norms";
+        }
+        return new NormShard(index, numShards, new File(output));
+    }
+
+    /**
+     * @return the sidecar file
+     */
+    File getFile() {
+        return file;
+    }
+
+    @Override
+    public String toString() {
+        return "shard " + (index + 1) + " of " + numShards;
+    }
+
+    /**
+     * Longest chromosomes first, each to the shard with the least sequence so far
+     *
+     * @return indices of the chromosomes this shard normalizes
+     */
+    Set<Integer> getChromosomeIndices(ChromosomeHandler chromosomeHandler) {
+        List<Chromosome> chromosomes = new ArrayList<>(Arrays.asList(chromosomeHandler.getChromosomeArrayWithoutAllByAll()));
+        chromosomes.sort((a, b) -> a.getLength() != b.getLength() ? Long.compare(b.getLength(), a.getLength())
+                : Integer.compare(a.getIndex(), b.getIndex()));
+
+        long[] assigned = new long[numShards];
+        Set<Integer> indices = new HashSet<>();
+        for (Chromosome chr : chromosomes) {
+            int shard = 0;
+            for (int s = 1; s < numShards; s++) {
+                if (assigned[s] < assigned[shard]) {
+                    shard = s;
+                }
+            }
+            assigned[shard] += chr.getLength();
+            if (shard == index) {
+                indices.add(chr.getIndex());
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * Genome-wide norms are handed out in turn, so every shard has to call this for the same zooms in the same order
+     *
+     * @return the norms, without the genome-wide ones of the other shards
+     */
+    List<NormalizationType> getNormsToBuild(List<NormalizationType> normsToBuild) {
+        List<NormalizationType> norms = new ArrayList<>();
+        for (NormalizationType type : normsToBuild) {
+            if (!NormalizationHandler.isGenomeWideNorm(type) || numGenomeWideNorms++ % numShards == index) {
+                norms.add(type);
+            }
+        }
+        return norms;
+    }
+
+    /**
+     * Write the norms of this shard to its sidecar file
+     *
+     * @param hicFingerprint identifies the .hic file the norms were calculated from (see {@link HicFingerprint})
+     * @param recalculated   keys (as in ExpectedValueFunctionImpl.getKey) of the norms calculated by all the shards
+     */
+    void write(String hicFingerprint, Set<String> recalculated, List<ExpectedValueCalculation> expectedValueCalculations,
+               NormVectorWriter normVectorWriter) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            try (FileOutputStream stream = new FileOutputStream(tmp)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(index);
+                out.writeInt(numShards);
+                out.writeUTF(hicFingerprint);
+                out.writeBoolean(HiCGlobals.RECOMPUTE_ALL_NORMS);
+
+                out.writeInt(recalculated.size());
+                for (String key : recalculated) {
+                    out.writeUTF(key);
+                }
+
+                out.writeInt(expectedValueCalculations.size());
+                for (ExpectedValueCalculation ev : expectedValueCalculations) {
+                    out.writeUTF(ev.getType().toString());
+                    out.writeUTF((ev.isFrag ? HiCZoom.HiCUnit.FRAG : HiCZoom.HiCUnit.BP).toString());
+                    out.writeInt(ev.getGridSize());
+                    Map<Integer, Double> counts = ev.getChromosomeCounts();
+                    out.writeInt(counts.size());
+                    for (Map.Entry<Integer, Double> entry : counts.entrySet()) {
+                        out.writeInt(entry.getKey());
+                        out.writeDouble(entry.getValue());
+                    }
+                    double[] distanceSums = ev.getDistanceSums();
+                    out.writeInt(distanceSums.length);
+                    for (double sum : distanceSums) {
+                        out.writeDouble(sum);
+                    }
+                }
+
+                List<NormalizationVectorIndexEntry> entries = normVectorWriter.getNormVectorIndex();
+                out.writeInt(entries.size());
+                for (NormalizationVectorIndexEntry entry : entries) {
+                    out.writeUTF(entry.type);
+                    out.writeInt(entry.chrIdx);
+                    out.writeUTF(entry.unit);
+                    out.writeInt(entry.resolution);
+                    out.writeLong(entry.position);
+                    out.writeLong(entry.sizeInBytes);
+                }
+                out.writeLong(normVectorWriter.getSize());
+                out.flush();
+
+                // then the vectors themselves, as they will be in the .hic file
+                normVectorWriter.transferTo(stream.getChannel());
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+        System.out.println("Finished writing norms of " + this + " to " + file);
+    }
+
+    /**
+     * Write the norms calculated by all the shards, and those already in the file that none of them recalculated,
+     * into the .hic file
+     */
+    public static void merge(String path, List<String> shardPaths) throws IOException {
+        if (shardPaths.isEmpty()) {
+            throw new IOException("No shards to merge into " + path);
+        }
+        DatasetReaderV2 reader = new DatasetReaderV2(path, false);
+        Dataset ds = reader.read();
+        HiCGlobals.verifySupportedHiCFileWritingVersion(reader.getVersion());
+        String hicFingerprint = HicFingerprint.get(path, reader);
+
+        Map<String, ExpectedValueCalculation> expectedValues = new LinkedHashMap<>();
+        List<SidecarFile> sidecars = new ArrayList<>();
+        for (String shardPath : shardPaths) {
+            sidecars.add(SidecarFile.read(new File(shardPath), ds, expectedValues));
+        }
+
+        SidecarFile first = sidecars.get(0);
+        boolean[] found = new boolean[first.numShards];
+        Set<String> recalculated = new HashSet<>();
+        for (SidecarFile sidecar : sidecars) {
+            if (sidecar.numShards != first.numShards) {
+                throw new IOException(sidecar.file + " is one of " + sidecar.numShards + " shards, not " + first.numShards);
+            }
+            if (sidecar.recomputeAll != first.recomputeAll) {
+                throw new IOException("Shards were not all run with the same --recompute-all-norms setting");
+            }
+            if (!sidecar.hicFingerprint.equals(hicFingerprint)) {
+                throw new IOException(sidecar.file + " was not calculated from the current " + path);
+            }
+            if (found[sidecar.index]) {
+                throw new IOException("Shard " + (sidecar.index + 1) + " is given more than once");
+            }
+            found[sidecar.index] = true;
+            recalculated.addAll(sidecar.recalculated);
+        }
+        for (int i = 0; i < found.length; i++) {
+            if (!found[i]) {
+                throw new IOException("Shard " + (i + 1) + " of " + first.numShards + " is missing");
+            }
+        }
+
+        try (NormVectorWriter writer = new NormVectorWriter()) {
+            for (SidecarFile sidecar : sidecars) {
+                try (FileChannel channel = new FileInputStream(sidecar.file).getChannel()) {
+                    writer.addAll(channel, channel.size() - sidecar.vectorBytes, sidecar.vectorBytes, sidecar.entries);
+                }
+            }
+
+            Map<String, ExpectedValueFunction> keptExpectedValues = new LinkedHashMap<>();
+            if (!first.recomputeAll) {
+                keptExpectedValues = new ExistingNorms(ds).copyUnchanged(recalculated, writer);
+                ds.clearCache();
+            }
+
+            List<ExpectedValueCalculation> expectedValueCalculations = new ArrayList<>();
+            for (ExpectedValueCalculation ev : expectedValues.values()) {
+                if (ev.hasData()) {
+                    expectedValueCalculations.add(ev);
+                }
+            }
+            NormVectorUpdater.writeNormsToUpdateFile(reader, path, expectedValueCalculations, keptExpectedValues, writer,
+                    "Finished merging norms of " + sidecars.size() + " shards");
+        }
+    }
+
+    /**
+     * Everything in a sidecar file except the vectors, which are copied straight from the file
+     */
+    private static class SidecarFile {
+        private final File file;
+        private int index, numShards;
+        private String hicFingerprint;
+        private boolean recomputeAll;
+        private final Set<String> recalculated = new HashSet<>();
+        private final List<NormalizationVectorIndexEntry> entries = new ArrayList<>();
+        private long vectorBytes;
+
+        private SidecarFile(File file) {
+            this.file = file;
+        }
+
+        /**
+         * @param expectedValues expected values of all the shards so far by key; the ones in the file are added to them
+         */
+        static SidecarFile read(File file, Dataset ds, Map<String, ExpectedValueCalculation> expectedValues) throws IOException {
+            SidecarFile sidecar = new SidecarFile(file);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException(file + " is not a norm shard");
+                }
+                int version = in.readInt();
+                if (version != VERSION) {
+                    throw new IOException(file + " is version " + version + " instead of " + VERSION);
+                }
+                sidecar.index = in.readInt();
+                sidecar.numShards = in.readInt();
+                sidecar.hicFingerprint = in.readUTF();
+                sidecar.recomputeAll = in.readBoolean();
+                if (sidecar.index < 0 || sidecar.index >= sidecar.numShards) {
+                    throw new IOException(file + " has an invalid shard number");
+                }
+
+                int numKeys = in.readInt();
+                for (int i = 0; i < numKeys; i++) {
+                    sidecar.recalculated.add(in.readUTF());
+                }
+
+                int numExpectedValues = in.readInt();
+                for (int i = 0; i < numExpectedValues; i++) {
+                    NormalizationType type = ds.getNormalizationHandler().getNormTypeFromString(in.readUTF());
+                    HiCZoom zoom = new HiCZoom(HiCZoom.HiCUnit.valueOf(in.readUTF()), in.readInt());
+                    Map<Integer, Double> counts = new HashMap<>();
+                    int numCounts = in.readInt();
+                    for (int c = 0; c < numCounts; c++) {
+                        int chrIdx = in.readInt();
+                        counts.put(chrIdx, in.readDouble());
+                    }
+                    double[] distanceSums = new double[in.readInt()];
+                    for (int d = 0; d < distanceSums.length; d++) {
+                        distanceSums[d] = in.readDouble();
+                    }
+
+                    String key = ExpectedValueFunctionImpl.getKey(zoom, type);
+                    ExpectedValueCalculation ev = expectedValues.get(key);
+                    if (ev == null) {
+                        Map<String, Integer> fcm = zoom.getUnit() == HiCZoom.HiCUnit.FRAG ? ds.getFragmentCounts() : null;
+                        ev = new ExpectedValueCalculation(ds.getChromosomeHandler(), zoom.getBinSize(), fcm, type);
+                        expectedValues.put(key, ev);
+                    }
+                    ev.addCounts(counts, distanceSums);
+                }
+
+                int numEntries = in.readInt();
+                for (int i = 0; i < numEntries; i++) {
+                    String type = in.readUTF();
+                    int chrIdx = in.readInt();
+                    String unit = in.readUTF();
+                    int resolution = in.readInt();
+                    long position = in.readLong();
+                    long sizeInBytes = in.readLong();
+                    sidecar.entries.add(new NormalizationVectorIndexEntry(type, chrIdx, unit, resolution, position, sizeInBytes));
+                }
+                sidecar.vectorBytes = in.readLong();
+            }
+            return sidecar;
+        }
+    }
+}
@@ -52,11 +52,8 @@ public class NormVectorUpdater {
 
         putFloatArraysIntoBufferList(normVectorBufferList, vec.getValues());
 
-        long newPos = 0;
-        for (int i=0; i < normVectorBufferList.size(); i++) {
-            newPos += normVectorBufferList.get(i).bytesWritten();
-        }
-        int sizeInBytes = (int) (newPos - position);
+        // vector length, then the values
+        long sizeInBytes = 8 + 4 * vec.getLength();
         normVectorIndex.add(new NormalizationVectorIndexEntry(type.toString(), chrIdx, zoom.getUnit().toString(), zoom.getBinSize(), position, sizeInBytes));
     }
 
@@ -139,33 +136,68 @@ public class NormVectorUpdater {
                                        Map<String, ExpectedValueFunction> expectedValueFunctionMap,
                                        List<NormalizationVectorIndexEntry> normVectorIndices,
                                        List<BufferedByteWriter> normVectorBuffers, String message) throws IOException {
-        int version = reader.getVersion();
-        long filePosition = reader.getNormFilePosition();
-        long nviHeaderPosition = reader.getNviHeaderPosition();
-
+        if (useCalcNotFunc) {
+            writeNormsToUpdateFile(reader, path, expectedValueCalculations, Collections.emptyMap(),
+                    normVectorIndices, normVectorBuffers, message);
+        } else {
+            writeNormsToUpdateFile(reader, path, Collections.emptyList(), expectedValueFunctionMap,
+                    normVectorIndices, normVectorBuffers, message);
+        }
+    }
 
+    /**
+     * Write the expected values (calculated ones first, then the functions) and the norm vectors
+     */
+    static void writeNormsToUpdateFile(DatasetReaderV2 reader, String path,
+                                       List<ExpectedValueCalculation> expectedValueCalculations,
+                                       Map<String, ExpectedValueFunction> expectedValueFunctionMap,
+                                       List<NormalizationVectorIndexEntry> normVectorIndices,
+                                       List<BufferedByteWriter> normVectorBuffers, String message) throws IOException {
         try (RandomAccessFile raf = new RandomAccessFile(path, "rw")) {
-            handleVersionSix(raf, version);
-            List<BufferedByteWriter> expectedBuffers = new ArrayList<>();
-            expectedBuffers.add(new BufferedByteWriter());
-
-            if (useCalcNotFunc) {
-                writeExpectedValues(expectedBuffers, expectedValueCalculations);
-            } else {
-                writeExpectedValues(expectedBuffers, expectedValueFunctionMap);
+            writeExpectedToFile(raf, reader, expectedValueCalculations, expectedValueFunctionMap);
+            writeNormIndexToFile(raf, normVectorIndices, reader.getNviHeaderPosition());
+            // Finally the norm vectors
+            for (int i = 0; i < normVectorBuffers.size(); i++) {
+                raf.write(normVectorBuffers.get(i).getBytes());
             }
+        }
+
+        System.out.println(message);
+    }
 
-            writeExpectedToBuffer(raf, expectedBuffers, filePosition);
-            writeNormsToBuffer(raf, normVectorIndices, normVectorBuffers, nviHeaderPosition);
+    /**
+     * Write the expected values (calculated ones first, then the functions), and copy the norm vectors
+     * from the writer into the file
+     */
+    static void writeNormsToUpdateFile(DatasetReaderV2 reader, String path,
+                                       List<ExpectedValueCalculation> expectedValueCalculations,
+                                       Map<String, ExpectedValueFunction> expectedValueFunctionMap,
+                                       NormVectorWriter normVectorWriter, String message) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path, "rw")) {
+            writeExpectedToFile(raf, reader, expectedValueCalculations, expectedValueFunctionMap);
+            writeNormIndexToFile(raf, normVectorWriter.getNormVectorIndex(), reader.getNviHeaderPosition());
+            normVectorWriter.transferTo(raf.getChannel());
         }
 
         System.out.println(message);
     }
 
-    private static void writeExpectedValues(List<BufferedByteWriter> expectedBuffers, List<ExpectedValueCalculation> expectedValueCalculations) throws IOException {
+    private static void writeExpectedToFile(RandomAccessFile raf, DatasetReaderV2 reader,
+                                            List<ExpectedValueCalculation> expectedValueCalculations,
+                                            Map<String, ExpectedValueFunction> expectedValueFunctionMap) throws IOException {
+        handleVersionSix(raf, reader.getVersion());
+        List<BufferedByteWriter> expectedBuffers = new ArrayList<>();
+        expectedBuffers.add(new BufferedByteWriter());
+
         BufferedByteWriter buffer = getBufferWithEnoughSpace(expectedBuffers, 4);
-        buffer.putInt(expectedValueCalculations.size());
+        buffer.putInt(expectedValueCalculations.size() + expectedValueFunctionMap.size());
+        writeExpectedValues(expectedBuffers, expectedValueCalculations);
+        writeExpectedValues(expectedBuffers, expectedValueFunctionMap);
+
+        writeExpectedToBuffer(raf, expectedBuffers, reader.getNormFilePosition());
+    }
 
+    private static void writeExpectedValues(List<BufferedByteWriter> expectedBuffers, List<ExpectedValueCalculation> expectedValueCalculations) throws IOException {
         for (ExpectedValueCalculation ev : expectedValueCalculations) {
             ev.computeDensity();
             HiCZoom.HiCUnit unit = ev.isFrag ? HiCZoom.HiCUnit.FRAG : HiCZoom.HiCUnit.BP;
@@ -176,10 +208,6 @@ public class NormVectorUpdater {
     }
 
     private static void writeExpectedValues(List<BufferedByteWriter> expectedBuffers, Map<String, ExpectedValueFunction> expectedValueFunctionMap) throws IOException {
-
-        BufferedByteWriter buffer = getBufferWithEnoughSpace(expectedBuffers, 4);
-        buffer.putInt(expectedValueFunctionMap.size());
-
         for (ExpectedValueFunction function : expectedValueFunctionMap.values()) {
             appendExpectedValuesToBuffer(expectedBuffers, function.getNormalizationType(),
                     function.getUnit(), function.getBinSize(),
@@ -220,8 +248,12 @@ public class NormVectorUpdater {
         return buffer;
     }
 
-    private static void writeNormsToBuffer(RandomAccessFile raf, List<NormalizationVectorIndexEntry> normVectorIndex,
-                                           List<BufferedByteWriter> normVectorBuffers, long nviHeaderPosition) throws IOException {
+    /**
+     * Write the norm index at the current position of the file (and its position and size into the header),
+     * with entries moved to where the norm vectors will start, right after the index
+     */
+    private static void writeNormIndexToFile(RandomAccessFile raf, List<NormalizationVectorIndexEntry> normVectorIndex,
+                                             long nviHeaderPosition) throws IOException {
         // Get the size of the index in bytes, to compute an offset for the actual entries.
         BufferedByteWriter buffer = new BufferedByteWriter();
         writeNormIndex(buffer, normVectorIndex);
@@ -248,9 +280,5 @@ public class NormVectorUpdater {
         buffer = new BufferedByteWriter();
         writeNormIndex(buffer, normVectorIndex);
         raf.write(buffer.getBytes());
-        // Finally the norm vectors
-        for (int i = 0; i < normVectorBuffers.size(); i++) {
-            raf.write(normVectorBuffers.get(i).getBytes());
-        }
     }
 }
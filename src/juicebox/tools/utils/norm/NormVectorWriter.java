@@ -0,0 +1,157 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+import javastraw.reader.datastructures.ListOfFloatArrays;
+import javastraw.reader.type.HiCZoom;
+import javastraw.reader.type.NormalizationType;
+import juicebox.HiCGlobals;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes norm vectors to a temporary file as they are finished, instead of keeping them all in memory
+ * until the norm section of the .hic file is written.
+ * <p/>
+ * Index positions are relative to the start of the vectors; they are moved to file positions
+ * when the vectors are copied into the .hic file after the index.
+ */
+class NormVectorWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final File file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final List<NormalizationVectorIndexEntry> normVectorIndex = new ArrayList<>();
+    private long position = 0;
+
+    NormVectorWriter() throws IOException {
+        file = File.createTempFile("norms", ".bin", HiCGlobals.NORM_TMP_DIRECTORY);
+        file.deleteOnExit();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Append the vector (its length, then its values) and add it to the index
+     */
+    void add(ListOfFloatArrays vec, int chrIdx, NormalizationType type, HiCZoom zoom) throws IOException {
+        long start = position;
+        ensureSpace(8);
+        buffer.putLong(vec.getLength());
+        for (float[] array : vec.getValues()) {
+            int offset = 0;
+            while (offset < array.length) {
+                ensureSpace(4);
+                int n = Math.min(array.length - offset, buffer.remaining() / 4);
+                buffer.asFloatBuffer().put(array, offset, n);
+                buffer.position(buffer.position() + 4 * n);
+                offset += n;
+            }
+        }
+        position += 8 + 4 * vec.getLength();
+        normVectorIndex.add(new NormalizationVectorIndexEntry(type.toString(), chrIdx, zoom.getUnit().toString(),
+                zoom.getBinSize(), start, position - start));
+    }
+
+    /**
+     * Append vectors written by another writer, copied from the source channel
+     *
+     * @param start   position of the first vector in the source
+     * @param entries index of the vectors, with positions relative to start
+     */
+    void addAll(FileChannel source, long start, long numBytes, List<NormalizationVectorIndexEntry> entries) throws IOException {
+        flush();
+        long transferred = 0;
+        while (transferred < numBytes) {
+            long n = source.transferTo(start + transferred, numBytes - transferred, channel);
+            if (n <= 0) {
+                throw new IOException("Expected " + numBytes + " bytes of norm vectors, found " + transferred);
+            }
+            transferred += n;
+        }
+        for (NormalizationVectorIndexEntry entry : entries) {
+            normVectorIndex.add(new NormalizationVectorIndexEntry(entry.type, entry.chrIdx, entry.unit,
+                    entry.resolution, position + entry.position, entry.sizeInBytes));
+        }
+        position += numBytes;
+    }
+
+    /**
+     * @return number of bytes of vectors written so far
+     */
+    long getSize() {
+        return position;
+    }
+
+    List<NormalizationVectorIndexEntry> getNormVectorIndex() {
+        return normVectorIndex;
+    }
+
+    /**
+     * Copy all the vectors to the current position of the target
+     */
+    void transferTo(FileChannel target) throws IOException {
+        flush();
+        long transferred = 0;
+        while (transferred < position) {
+            long n = channel.transferTo(transferred, position - transferred, target);
+            if (n <= 0) {
+                throw new IOException("Expected " + position + " bytes of norm vectors, copied " + transferred);
+            }
+            transferred += n;
+        }
+    }
+
+    private void ensureSpace(int bytesNeeded) throws IOException {
+        if (buffer.remaining() < bytesNeeded) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        if (!file.delete()) {
+            System.err.println("Could not delete " + file);
+        }
+    }
+}
@@ -30,10 +30,9 @@ import javastraw.reader.datastructures.ListOfFloatArrays;
 import javastraw.reader.datastructures.ListOfIntArrays;
 import javastraw.reader.iterators.IteratorContainer;
 import javastraw.reader.type.NormalizationType;
+import juicebox.HiCGlobals;
 import juicebox.tools.clt.old.NormalizationBuilder;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 
-import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
@@ -50,14 +49,72 @@ import java.util.Random;
  */
 public class NormalizationCalculations {
 
+    // with ABORT_NON_CONVERGING, a KR attempt whose residual does not drop by MIN_IMPROVEMENT
+    // within this many Newton steps is given up
+    private static final int KR_STAGNATION_WINDOW = 20;
+    private static final double MIN_IMPROVEMENT = 0.1;
+
     private final long matrixSize; // x and y symmetric
     private boolean isEnoughMemory = false;
-    private final IteratorContainer ic;
+    private IteratorContainer ic;
+    private SparseContactMatrix matrix = null;
+    private RowStatistics rowStatistics = null;
+    private SharedContactPasses sharedPasses = null;
+    // why the pre-flight check found the matrix hopeless, "" if it did not, or null if it was not made yet
+    private String reasonToSkip = null;
 
     public NormalizationCalculations(IteratorContainer ic) {
+        this(ic, IteratorContainer.numCPUMatrixThreads);
+    }
+
+    /**
+     * @param numThreads threads for the passes over the matrix
+     */
+    public NormalizationCalculations(IteratorContainer ic, int numThreads) {
         this.ic = ic;
         this.matrixSize = ic.getMatrixSize();
         isEnoughMemory = ic.getIsThereEnoughMemoryForNormCalculation();
+        if (isEnoughMemory) {
+            matrix = SparseContactMatrix.create(ic, numThreads);
+            if (matrix != null) {
+                // every pass now runs on the CSR copy; let the contact records be garbage collected
+                this.ic = null;
+            }
+        }
+    }
+
+    private NormalizationCalculations(SparseContactMatrix matrix) {
+        this.ic = null;
+        this.matrixSize = matrix.getMatrixSize();
+        this.matrix = matrix;
+        this.isEnoughMemory = true;
+    }
+
+    /**
+     * For matrices too big to normalize in memory: spill the contacts to a memory-mapped
+     * temporary file and run every pass over that file.
+     *
+     * @param ic should stream its contacts from the .hic file rather than hold them in memory
+     * @return null if even the normalization vectors will not fit in memory
+     */
+    public static NormalizationCalculations createOutOfCore(IteratorContainer ic) {
+        return createOutOfCore(ic, IteratorContainer.numCPUMatrixThreads);
+    }
+
+    /**
+     * @param numThreads threads for the passes over the file
+     */
+    public static NormalizationCalculations createOutOfCore(IteratorContainer ic, int numThreads) {
+        SparseContactMatrix matrix = MappedContactMatrix.spill(ic, numThreads);
+        if (matrix == null) return null;
+        return new NormalizationCalculations(matrix);
+    }
+
+    /**
+     * Normalize a matrix that is already in CSR format
+     */
+    public static NormalizationCalculations fromMatrix(SparseContactMatrix matrix) {
+        return new NormalizationCalculations(matrix);
     }
 
     private static ListOfDoubleArrays sparseMultiplyFromContactRecords(ListOfIntArrays offset,
@@ -84,6 +141,30 @@ public class NormalizationCalculations {
         return result;
     }
 
+    /**
+     * sparseMultiplyFromContactRecords for a float vector; the products are summed in double
+     */
+    private static ListOfDoubleArrays sparseMultiplyFromContactRecords(ListOfIntArrays offset,
+                                                                      Iterator<ContactRecord> iterator, ListOfFloatArrays vector) {
+        ListOfDoubleArrays result = new ListOfDoubleArrays(vector.getLength());
+
+        while (iterator.hasNext()) {
+            ContactRecord cr = iterator.next();
+            int row = offset.get(cr.getBinX());
+            int col = offset.get(cr.getBinY());
+            float value = cr.getCounts();
+
+            if (row != -1 && col != -1) {
+                result.addTo(row, (double) vector.get(col) * value);
+                if (row != col) {
+                    result.addTo(col, (double) vector.get(row) * value);
+                }
+            }
+        }
+
+        return result;
+    }
+
     /*
     function [x,res] = bnewt(A,tol,x0,delta,fl)
           % BNEWT A balancing algorithm for symmetric matrices
@@ -115,23 +196,20 @@ public class NormalizationCalculations {
 
         double rt = Math.pow(tol, 2);
 
-        ListOfDoubleArrays v = sparseMultiplyFromContactRecords(offset, getIterator(), x0);
+        ListOfDoubleArrays v = sparseMultiply(offset, x0);
         ListOfDoubleArrays rk = new ListOfDoubleArrays(v.getLength());
         for (long i = 0; i < v.getLength(); i++) {
             v.multiplyBy(i, x0.get(i));
             rk.set(i, 1 - v.get(i));
         }
-        double rho_km1 = 0;
-        for (double[] aRkArray : rk.getValues()) {
-            for (double aRk : aRkArray) {
-                rho_km1 += aRk * aRk;
-            }
-        }
+        double rho_km1 = VectorMath.dot(rk, rk, n);
         double rout = rho_km1;
         double rold = rout;
         int MVP = 0;  // We'll count matrix vector products.
 
         int not_changing = 0;
+        StagnationDetector stagnation = HiCGlobals.ABORT_NON_CONVERGING
+                ? new StagnationDetector(KR_STAGNATION_WINDOW, MIN_IMPROVEMENT) : null;
         while (rout > rt && not_changing < 100) {    // Outer iteration
             int k = 0;
             ListOfDoubleArrays y = e.deepClone();
@@ -161,16 +239,11 @@ public class NormalizationCalculations {
 
                 } else {
                     beta = rho_km1 / rho_km2;
-                    p.multiplyEverythingBy(beta);
-                    for (long i = 0; i < p.getLength(); i++) {
-                        p.addTo(i, Z.get(i));
-                    }
+                    VectorMath.scaleAndAdd(p, beta, Z, n);
                 }
                 ListOfDoubleArrays tmp = new ListOfDoubleArrays(e.getLength());
-                for (long i = 0; i < tmp.getLength(); i++) {
-                    tmp.set(i, x0.get(i) * p.get(i));
-                }
-                tmp = sparseMultiplyFromContactRecords(offset, getIterator(), tmp);
+                VectorMath.multiply(x0, p, tmp, n);
+                tmp = sparseMultiply(offset, tmp);
                 alpha = 0;
                 // Update search direction efficiently.
                 for (long i = 0; i < tmp.getLength(); i++) {
@@ -201,9 +274,7 @@ public class NormalizationCalculations {
                             }
                         }
                     }
-                    for (long i = 0; i < y.getLength(); i++) {
-                        y.addTo(i, gamma * alpha * p.get(i));
-                    }
+                    VectorMath.addScaled(y, gamma * alpha, p, n);
                     break;   // break out of inner loop?
                 }
                 rho_km2 = rho_km1;
@@ -217,10 +288,8 @@ public class NormalizationCalculations {
                 }
 
             } // end inner loop
-            for (long i = 0; i < x0.getLength(); i++) {
-                x0.multiplyBy(i, y.get(i));
-            }
-            v = sparseMultiplyFromContactRecords(offset, getIterator(), x0);
+            VectorMath.multiply(x0, y, n);
+            v = sparseMultiply(offset, x0);
             rho_km1 = 0;
             for (long i = 0; i < v.getLength(); i++) {
                 v.multiplyBy(i, x0.get(i));
@@ -232,6 +301,10 @@ public class NormalizationCalculations {
             if (Math.abs(rho_km1 - rout) < 0.000001 || Double.isInfinite(rho_km1)) {
                 not_changing++;
             }
+            if (stagnation != null && stagnation.isStagnant(rho_km1)) {
+                // give up on this attempt, as after 100 iterations without change
+                return null;
+            }
             rout = rho_km1;
             MVP = MVP + k + 1;
             //  Update inner iteration stopping criterion.
@@ -251,6 +324,190 @@ public class NormalizationCalculations {
         return x0;
     }
 
+    /**
+     * computeKRNormVector with the vectors of the iterations stored in float, except for the solution x0.
+     * Every entry and every reduction (dot products, matrix rows) is still calculated in double.
+     * The Newton steps y are stored as their difference from one, since the last steps are smaller
+     * than float can resolve next to one.
+     *
+     * @return the solution, or null if it did not converge
+     */
+    private ListOfDoubleArrays computeKRNormVectorInFloat(ListOfIntArrays offset, double tol, ListOfDoubleArrays x0,
+                                                          double delta) {
+
+        long n = x0.getLength();
+
+        double g = 0.9;
+        double etamax = 0.1;
+        double eta = etamax;
+
+        double rt = Math.pow(tol, 2);
+
+        ListOfFloatArrays v = new ListOfFloatArrays(n);
+        ListOfFloatArrays rk = new ListOfFloatArrays(n);
+        double rho_km1 = updateResidual(offset, x0, v, rk);
+        double rout = rho_km1;
+        double rold = rout;
+
+        int not_changing = 0;
+        StagnationDetector stagnation = HiCGlobals.ABORT_NON_CONVERGING
+                ? new StagnationDetector(KR_STAGNATION_WINDOW, MIN_IMPROVEMENT) : null;
+        while (rout > rt && not_changing < 100) {    // Outer iteration
+            int k = 0;
+            // y - 1
+            ListOfFloatArrays dy = new ListOfFloatArrays(n);
+            ListOfFloatArrays dynew = new ListOfFloatArrays(n);
+            ListOfFloatArrays Z = new ListOfFloatArrays(n);
+            ListOfFloatArrays p = new ListOfFloatArrays(n);
+            ListOfFloatArrays w = new ListOfFloatArrays(n);
+            ListOfFloatArrays tmp = new ListOfFloatArrays(n);
+            double alpha;
+            double beta;
+            double gamma;
+            double rho_km2 = rho_km1;
+
+
+            double innertol = Math.max(Math.pow(eta, 2) * rout, rt);
+            while (rho_km1 > innertol) {   // Inner iteration by CG
+                k++;
+
+                if (k == 1) {
+                    rho_km1 = 0;
+                    for (long i = 0; i < n; i++) {
+                        double rkVal = rk.get(i);
+                        double zVal = rkVal / v.get(i);
+                        Z.set(i, (float) zVal);
+                        p.set(i, (float) zVal);
+                        rho_km1 += rkVal * zVal;
+                    }
+
+                } else {
+                    beta = rho_km1 / rho_km2;
+                    for (long i = 0; i < n; i++) {
+                        p.set(i, (float) (beta * p.get(i) + Z.get(i)));
+                    }
+                }
+                for (long i = 0; i < n; i++) {
+                    tmp.set(i, (float) (x0.get(i) * p.get(i)));
+                }
+                ListOfDoubleArrays product = sparseMultiply(offset, tmp);
+                alpha = 0;
+                // Update search direction efficiently.
+                for (long i = 0; i < n; i++) {
+                    double pVal = p.get(i);
+                    double wVal = (x0.get(i) * product.get(i) + v.get(i) * pVal);
+                    w.set(i, (float) wVal);
+                    alpha += pVal * wVal;
+                }
+                alpha = rho_km1 / alpha;
+                double minynew = Double.MAX_VALUE;
+                // Test distance to boundary of cone.
+                for (long i = 0; i < n; i++) {
+                    double dyVal = dy.get(i) + alpha * p.get(i);
+                    dynew.set(i, (float) dyVal);
+                    if (1 + dyVal < minynew) {
+                        minynew = 1 + dyVal;
+                    }
+                }
+                if (minynew <= delta) {
+                    if (delta == 0) break;     // break out of inner loop?
+                    gamma = Double.MAX_VALUE;
+                    for (long i = 0; i < n; i++) {
+                        double pVal = p.get(i);
+                        if (alpha * pVal < 0) {
+                            double yVal = 1.0 + dy.get(i);
+                            if ((delta - yVal) / (alpha * pVal) < gamma) {
+                                gamma = ((delta - yVal) / (alpha * pVal));
+                            }
+                        }
+                    }
+                    for (long i = 0; i < n; i++) {
+                        dy.set(i, (float) (dy.get(i) + gamma * alpha * p.get(i)));
+                    }
+                    break;   // break out of inner loop?
+                }
+                rho_km2 = rho_km1;
+                rho_km1 = 0;
+                // swap instead of copying; dynew is overwritten before it is read again
+                ListOfFloatArrays swap = dy;
+                dy = dynew;
+                dynew = swap;
+                for (long i = 0; i < n; i++) {
+                    double rkVal = rk.get(i) - alpha * w.get(i);
+                    rk.set(i, (float) rkVal);
+                    double zVal = rkVal / v.get(i);
+                    Z.set(i, (float) zVal);
+                    rho_km1 += rkVal * zVal;
+                }
+
+            } // end inner loop
+            for (long i = 0; i < n; i++) {
+                x0.multiplyBy(i, 1.0 + dy.get(i));
+            }
+            rho_km1 = updateResidual(offset, x0, v, rk);
+            if (Math.abs(rho_km1 - rout) < 0.000001 || Double.isInfinite(rho_km1)) {
+                not_changing++;
+            }
+            if (stagnation != null && stagnation.isStagnant(rho_km1)) {
+                // give up on this attempt, as after 100 iterations without change
+                return null;
+            }
+            rout = rho_km1;
+            //  Update inner iteration stopping criterion.
+            double rat = rout / rold;
+            rold = rout;
+            double r_norm = Math.sqrt(rout);
+            double eta_o = eta;
+            eta = g * rat;
+            if (g * Math.pow(eta_o, 2) > 0.1) {
+                eta = Math.max(eta, g * Math.pow(eta_o, 2));
+            }
+            eta = Math.max(Math.min(eta, etamax), 0.5 * tol / r_norm);
+        }
+        if (not_changing >= 100) {
+            return null;
+        }
+        return x0;
+    }
+
+    /**
+     * Set v = x0 .* (A * x0) and the residual rk = 1 - v; the residual is taken before v is rounded to float
+     *
+     * @return squared norm of the residual
+     */
+    private double updateResidual(ListOfIntArrays offset, ListOfDoubleArrays x0, ListOfFloatArrays v, ListOfFloatArrays rk) {
+        ListOfDoubleArrays product = sparseMultiply(offset, x0);
+        double rho = 0;
+        for (long i = 0; i < x0.getLength(); i++) {
+            double vVal = product.get(i) * x0.get(i);
+            v.set(i, (float) vVal);
+            double rkVal = 1 - vVal;
+            rk.set(i, (float) rkVal);
+            rho += rkVal * rkVal;
+        }
+        return rho;
+    }
+
+    private ListOfDoubleArrays sparseMultiply(ListOfIntArrays offset, ListOfFloatArrays vector) {
+        if (matrix != null) {
+            return matrix.sparseMultiply(offset, vector);
+        }
+        if (sharedPasses != null) {
+            return sharedPasses.multiply(offset, vector);
+        }
+        return sparseMultiplyFromContactRecords(offset, getIterator(), vector);
+    }
+
+    private ListOfDoubleArrays sparseMultiply(ListOfIntArrays offset, ListOfDoubleArrays vector) {
+        if (matrix != null) {
+            return matrix.sparseMultiply(offset, vector);
+        }
+        if (sharedPasses != null) {
+            return sharedPasses.multiply(offset, vector);
+        }
+        return sparseMultiplyFromContactRecords(offset, getIterator(), vector);
+    }
+
     private Iterator<ContactRecord> getIterator() {
         return ic.getNewContactRecordIterator();
     }
@@ -259,6 +516,69 @@ public class NormalizationCalculations {
         return isEnoughMemory;
     }
 
+    public long getMatrixSize() {
+        return matrixSize;
+    }
+
+    /**
+     * @return CSR copy of the contacts (in memory, deflated in memory, or memory-mapped), or null if the passes
+     * are streamed from the iterator container
+     */
+    public SparseContactMatrix getMatrix() {
+        return matrix;
+    }
+
+    /**
+     * Give back what the CSR copy holds of shared budgets, once all norms are calculated
+     */
+    public void release() {
+        if (matrix != null) {
+            matrix.release();
+        }
+    }
+
+    /**
+     * Have the KR and SCALE multiplies go through shared passes (only used if there is no CSR matrix);
+     * null to go back to separate passes
+     */
+    void setSharedPasses(SharedContactPasses sharedPasses) {
+        this.sharedPasses = sharedPasses;
+    }
+
+    /**
+     * @return contacts of the matrix, for passes that are streamed
+     */
+    IteratorContainer getIteratorContainer() {
+        return ic;
+    }
+
+    /**
+     * Pre-flight check for KR and SCALE, made once per matrix and only if HiCGlobals.ABORT_NON_CONVERGING is set
+     *
+     * @return true if the matrix is too sparse or fragmented for the iterations to converge
+     */
+    synchronized boolean isHopeless() {
+        if (!HiCGlobals.ABORT_NON_CONVERGING) return false;
+        if (reasonToSkip == null) {
+            String reason = ConvergenceCheck.findReasonToSkip(getRowStatistics(), ic, matrix);
+            reasonToSkip = reason == null ? "" : reason;
+            if (reason != null && HiCGlobals.printVerboseComments) {
+                System.out.println("Not balancing the matrix: " + reason);
+            }
+        }
+        return !reasonToSkip.isEmpty();
+    }
+
+    /**
+     * @return row statistics of the matrix; calculated on first use and then shared by every norm
+     */
+    public RowStatistics getRowStatistics() {
+        if (rowStatistics == null) {
+            rowStatistics = RowStatistics.create(ic, matrix);
+        }
+        return rowStatistics;
+    }
+
     public ListOfFloatArrays getNorm(NormalizationType normOption) {
         ListOfFloatArrays norm;
         if (NormalizationBuilder.usesKR(normOption)) {
@@ -287,22 +607,7 @@ public class NormalizationCalculations {
      * @return Normalization vector
      */
     ListOfFloatArrays computeVC() {
-        ListOfFloatArrays rowsums = new ListOfFloatArrays(matrixSize, 0);
-
-        Iterator<ContactRecord> iterator = getIterator();
-        while (iterator.hasNext()) {
-            ContactRecord cr = iterator.next();
-            int x = cr.getBinX();
-            int y = cr.getBinY();
-            float value = cr.getCounts();
-            rowsums.addTo(x, value);
-            if (x != y) {
-                rowsums.addTo(y, value);
-            }
-        }
-
-        return rowsums;
-
+        return getRowStatistics().getRowSums().convertToFloats();
     }
 
     /**
@@ -317,6 +622,9 @@ public class NormalizationCalculations {
     }
     
     public double[] getNormMatrixSumFactor(ListOfFloatArrays norm) {
+        if (matrix != null) {
+            return matrix.getNormMatrixSums(norm);
+        }
         double matrix_sum = 0;
         double norm_sum = 0;
 
@@ -343,6 +651,47 @@ public class NormalizationCalculations {
     }
 
 
+    /**
+     * Gather the sums for scaling each of the vectors and adding it to the expected values,
+     * in one pass over the contacts for all of them
+     *
+     * @return the sums, in the order of the vectors
+     */
+    NormalizedSums[] getNormalizedSums(List<ListOfFloatArrays> norms) {
+        if (matrix != null) {
+            return matrix.getNormalizedSums(norms);
+        }
+        int numNorms = norms.size();
+        double[][] distanceSums = new double[numNorms][(int) matrixSize];
+        double[] matrixSums = new double[numNorms];
+        boolean[] hasData = new boolean[numNorms];
+
+        Iterator<ContactRecord> iterator = getIterator();
+        while (iterator.hasNext()) {
+            ContactRecord cr = iterator.next();
+            int x = cr.getBinX();
+            int y = cr.getBinY();
+            float value = cr.getCounts();
+            // want total sum of matrix, not just upper triangle
+            float count = x == y ? value : 2 * value;
+            for (int n = 0; n < numNorms; n++) {
+                float valX = norms.get(n).get(x);
+                float valY = norms.get(n).get(y);
+                if (NormVectorUpdater.isValidNormValue(valX) && NormVectorUpdater.isValidNormValue(valY)) {
+                    distanceSums[n][Math.abs(x - y)] += value / (valX * valY);
+                    matrixSums[n] += count;
+                    hasData[n] = true;
+                }
+            }
+        }
+
+        NormalizedSums[] sums = new NormalizedSums[numNorms];
+        for (int n = 0; n < numNorms; n++) {
+            sums[n] = new NormalizedSums(hasData[n] ? distanceSums[n] : null, matrixSums[n]);
+        }
+        return sums;
+    }
+
     public int getNumberOfValidEntriesInVector(double[] norm) {
         int counter = 0;
         for (double val : norm) {
@@ -355,26 +704,29 @@ public class NormalizationCalculations {
     
     
     ListOfFloatArrays computeKR() {
+        if (isHopeless()) return null;
         
         boolean recalculate = true;
-        ListOfIntArrays offset = getOffset(0);
+        OrderStatistics nonZeroRowSums = null;
+        ListOfIntArrays offset = new ListOfIntArrays(matrixSize);
+        long newSize = updateOffset(offset, 0);
         ListOfFloatArrays kr = null;
+        // solution of the previous attempt and the offset it was calculated with, to warm start the next one
+        ListOfDoubleArrays previousX = null;
+        ListOfIntArrays previousOffset = null;
         int iteration = 1;
         
         while (recalculate && iteration <= 6) {
-            // create new matrix indices upon every iteration, because we've thrown out rows
-            // newSize is size of new sparse matrix (non-sparse rows)
-            long newSize = 0;
-            for (int[] array : offset.getValues()) {
-                for (int offset1 : array) {
-                    if (offset1 != -1) newSize++;
-                }
-            }
+            // rows are thrown out between iterations; newSize is size of new sparse matrix (non-sparse rows)
+            ListOfDoubleArrays x0 = getKRStartingVector(previousX, previousOffset, offset, newSize);
+            previousX = null;
+            previousOffset = null;
             
-            // initialize x0 for call the compute KR norm
-            ListOfDoubleArrays x0 = new ListOfDoubleArrays(newSize, 1);
-            
-            x0 = computeKRNormVector(offset, 0.000001, x0, 0.1);
+            if (HiCGlobals.MIXED_PRECISION_KR) {
+                x0 = computeKRNormVectorInFloat(offset, 0.000001, x0, 0.1);
+            } else {
+                x0 = computeKRNormVector(offset, 0.000001, x0, 0.1);
+            }
 
             // assume all went well and we don't need to recalculate
             recalculate = false;
@@ -383,11 +735,15 @@ public class NormalizationCalculations {
             if (x0 == null || iteration == 5) {
                 // if x0 is no good, throw out some percentage of rows and reset the offset array that gives those rows
                 recalculate = true;
-                if (iteration < 5) {
-                    offset = getOffset(iteration);
-                } else {
-                    offset = getOffset(10);
+                if (x0 != null) {
+                    previousX = x0;
+                    previousOffset = offset.deepClone();
                 }
+                if (nonZeroRowSums == null) {
+                    nonZeroRowSums = getNonZeroValues(getRowStatistics().getRowSums());
+                }
+                double percent = iteration < 5 ? iteration : 10;
+                newSize = updateOffset(offset, nonZeroRowSums.getPercentile(percent));
                 //   System.out.print(" " + iteration + "%");
             } else {
                 // otherwise, check to be sure there are no tiny KR values
@@ -405,6 +761,8 @@ public class NormalizationCalculations {
                 }
                 // find scaling factor
                 double mySum = getSumFactor(kr);
+                previousX = x0;
+                previousOffset = offset.deepClone();
     
                 // if any values are too small, recalculate.  set those rows to be thrown out and reset the offset
                 // note that if no rows are thrown out, the offset should not change
@@ -420,6 +778,7 @@ public class NormalizationCalculations {
                         }
                     }
                 }
+                newSize = index;
                 // if (recalculate) System.out.print(" " + rowsTossed);
             }
             iteration++;
@@ -428,55 +787,64 @@ public class NormalizationCalculations {
         if (iteration > 6 && recalculate) {
             kr = new ListOfFloatArrays(matrixSize, Float.NaN);
         }
+        if (HiCGlobals.ABORT_NON_CONVERGING && !hasValidEntry(kr)) {
+            // report the failure, so that finer resolutions are skipped
+            return null;
+        }
 
         return kr;
     }
-    
-    private ListOfIntArrays getOffset(double percent) {
-        ListOfDoubleArrays rowSums = new ListOfDoubleArrays(matrixSize, 0);
 
-        Iterator<ContactRecord> iterator = getIterator();
-        while (iterator.hasNext()) {
-            ContactRecord cr = iterator.next();
-            int x = cr.getBinX();
-            int y = cr.getBinY();
-            float value = cr.getCounts();
-            rowSums.addTo(x, value);
-            if (x != y) {
-                rowSums.addTo(y, value);
-            }
-        }
-
-        double thresh = 0;
-        if (percent > 0) {
-            // Get percent threshold from positive row sums (nonzero)
-            DescriptiveStatistics stats = new DescriptiveStatistics();
-            rowSums.getValues().forEach(sum -> Arrays.stream(sum).filter(i-> i != 0).forEach(stats::addValue));
-            thresh = stats.getPercentile( percent);
-            /*
-            int j = 0;
-            for (double[] array : rowSums.getValues()) {
-                for (double sum : array) {
-                    if (sum != 0) {
-                        j++;
-                    }
-                }
+    private static boolean hasValidEntry(ListOfFloatArrays vector) {
+        for (float[] array : vector.getValues()) {
+            for (float value : array) {
+                if (!Float.isNaN(value)) return true;
             }
-            double[] posRowSums = new double[j];
+        }
+        return false;
+    }
 
-            j = 0;
-            for (double[] array : rowSums.getValues()) {
-                for (double sum : array) {
-                    if (sum != 0) {
-                        posRowSums[j++] = sum;
-                    }
+    /**
+     * Starting point for KR: the previous solution restricted to the rows that are still kept, or all ones
+     * if there is none. Rows that were not part of the previous solution start at the mean of the others.
+     */
+    private static ListOfDoubleArrays getKRStartingVector(ListOfDoubleArrays previousX, ListOfIntArrays previousOffset,
+                                                          ListOfIntArrays offset, long newSize) {
+        if (previousX == null) {
+            return new ListOfDoubleArrays(newSize, 1);
+        }
+        
+        ListOfDoubleArrays x0 = new ListOfDoubleArrays(newSize, Double.NaN);
+        double sum = 0;
+        long count = 0;
+        for (long i = 0; i < offset.getLength(); i++) {
+            int index = offset.get(i);
+            int previousIndex = previousOffset.get(i);
+            if (index != -1 && previousIndex != -1) {
+                double val = previousX.get(previousIndex);
+                x0.set(index, val);
+                sum += val;
+                count++;
+            }
+        }
+        if (count < newSize) {
+            double mean = count > 0 ? sum / count : 1;
+            for (long i = 0; i < newSize; i++) {
+                if (Double.isNaN(x0.get(i))) {
+                    x0.set(i, mean);
                 }
             }
-            thresh = StatUtils.percentile(posRowSums, percent);
-             */
         }
-        
-        ListOfIntArrays offset = new ListOfIntArrays(rowSums.getLength());
+        return x0;
+    }
+    
+    /**
+     * Throw out the rows whose sum is at most thresh, and renumber the rest in place
+     *
+     * @return number of rows kept
+     */
+    private long updateOffset(ListOfIntArrays offset, double thresh) {
+        ListOfDoubleArrays rowSums = getRowStatistics().getRowSums();
         int index = 0;
         for (long i = 0; i < rowSums.getLength(); i++) {
             if (rowSums.get(i) <= thresh) {
@@ -485,16 +853,50 @@ public class NormalizationCalculations {
                 offset.set(i, index++);
             }
         }
-        
-        return offset;
-        
+        return index;
     }
     
+    private static OrderStatistics getNonZeroValues(ListOfDoubleArrays vector) {
+        long numNonZero = 0;
+        for (double[] array : vector.getValues()) {
+            for (double val : array) {
+                if (val != 0) numNonZero++;
+            }
+        }
+
+        if (QuantileSketch.shouldUse(numNonZero)) {
+            QuantileSketch sketch = new QuantileSketch();
+            for (double[] array : vector.getValues()) {
+                for (double val : array) {
+                    if (val != 0) sketch.add(val);
+                }
+            }
+            return sketch;
+        }
+
+        double[] values = new double[(int) numNonZero];
+        int j = 0;
+        for (double[] array : vector.getValues()) {
+            for (double val : array) {
+                if (val != 0) values[j++] = val;
+            }
+        }
+        return new SelectableArray(values, j);
+    }
+
     public ListOfFloatArrays computeMMBA() {
+        return computeMMBA(null);
+    }
+
+    /**
+     * @param initialGuess scaling vector to start from, e.g. from {@link ZeroScale#createWarmStart}; null to start from ones
+     */
+    public ListOfFloatArrays computeMMBA(ListOfFloatArrays initialGuess) {
+        if (isHopeless()) return null;
         
         ListOfFloatArrays tempTargetVector = new ListOfFloatArrays(matrixSize, 1);
 
-        return ZeroScale.mmbaScaleToVector(ic, tempTargetVector);
+        return ZeroScale.mmbaScaleToVector(ic, matrix, sharedPasses, getRowStatistics(), tempTargetVector, initialGuess);
     }
 
     /*public BigContactRecordList booleanBalancing() {
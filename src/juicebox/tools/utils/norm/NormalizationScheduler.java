@@ -0,0 +1,223 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs independent normalization jobs (e.g. the chromosomes of a zoom) concurrently.
+ * <p/>
+ * Jobs are started in the order given, as long as there is a free thread and their estimated
+ * memory fits in the budget next to the jobs already running (a job that does not fit on its own
+ * still runs, but alone, and with all the threads). The results are committed on the calling thread in the same order,
+ * so the output does not depend on the number of threads or the timing. Once a job fails, no more are started,
+ * and the error is thrown when the ones already running are done.
+ * <p/>
+ * The threads are also the budget for the passes over each matrix: a job is given the threads not taken
+ * by the jobs already running, split evenly with the jobs that can start next to it, so that N threads
+ * do not become N jobs of N threads each.
+ * <p/>
+ * Several threads (e.g. one per .hic file in a batch) can run jobs at the same time; they then share
+ * the worker threads and the memory budget.
+ */
+class NormalizationScheduler {
+
+    interface Job {
+        /**
+         * @return estimated peak memory of compute with that many threads, in bytes
+         */
+        long getEstimatedBytes(int numThreads);
+
+        /**
+         * Calculate the result; may run on any thread, concurrently with other jobs
+         *
+         * @param numThreads threads the job may use for its passes over the matrix
+         */
+        void compute(int numThreads) throws IOException;
+
+        /**
+         * Write out the result; runs on the calling thread, in job order
+         */
+        void commit() throws IOException;
+    }
+
+    private final int numThreads;
+    private final long memoryBudget;
+    private ExecutorService executor = null;
+    private int numRunning = 0;
+    private int threadsReserved = 0;
+    private long bytesReserved = 0;
+
+    NormalizationScheduler(int numThreads, long memoryBudget) {
+        this.numThreads = Math.max(1, numThreads);
+        this.memoryBudget = memoryBudget;
+    }
+
+    void run(List<? extends Job> jobs) throws IOException {
+        if (numThreads == 1) {
+            for (Job job : jobs) {
+                job.compute(1);
+                job.commit();
+            }
+            return;
+        }
+
+        final boolean[] isDone = new boolean[jobs.size()];
+        final Throwable[] errors = new Throwable[jobs.size()];
+        int numStarted = 0;
+        boolean isFinished = false;
+        try {
+            for (int i = 0; i < jobs.size(); i++) {
+                synchronized (this) {
+                    while (!isDone[i]) {
+                        // after a failure, only wait for the jobs already running
+                        while (numStarted < jobs.size() && !hasFailed(errors, numStarted)) {
+                            int jobThreads = getNumThreadsToStart(jobs, numStarted);
+                            if (jobThreads == 0) break;
+                            start(jobs.get(numStarted), numStarted, jobThreads, isDone, errors);
+                            numStarted++;
+                        }
+                        if (!isDone[i]) {
+                            wait();
+                        }
+                    }
+                    if (errors[i] != null) {
+                        throw getAsIOException(errors[i]);
+                    }
+                }
+                jobs.get(i).commit();
+            }
+            isFinished = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while normalizing", e);
+        } finally {
+            if (!isFinished) {
+                // the caller closes what the jobs write to once this returns
+                awaitStarted(isDone, numStarted);
+            }
+        }
+    }
+
+    /**
+     * Stop the worker threads once the jobs already started are done
+     */
+    synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * @return threads to start the job at index first with: those not taken by the running jobs, split evenly
+     * between it and the jobs after it that fit next to it with one thread each, and fewer if their memory does
+     * not fit; or 0 if the job has to wait for running jobs to finish
+     */
+    private int getNumThreadsToStart(List<? extends Job> jobs, int first) {
+        if (numRunning >= numThreads) return 0;
+        int numStarting = 0;
+        long bytes = bytesReserved;
+        for (int j = first; j < jobs.size() && numRunning + numStarting < numThreads; j++) {
+            bytes += jobs.get(j).getEstimatedBytes(1);
+            if (bytes > memoryBudget) break;
+            numStarting++;
+        }
+        if (numStarting == 0) {
+            // too big to run next to anything else; the matrix itself limits its workers to the memory left
+            return numRunning == 0 ? numThreads : 0;
+        }
+
+        Job job = jobs.get(first);
+        int jobThreads = Math.max(1, (numThreads - threadsReserved) / numStarting);
+        while (jobThreads > 1 && bytesReserved + job.getEstimatedBytes(jobThreads) > memoryBudget) {
+            jobThreads--;
+        }
+        return jobThreads;
+    }
+
+    private void start(final Job job, final int index, final int jobThreads, final boolean[] isDone,
+                       final Throwable[] errors) {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(numThreads);
+        }
+        final long bytes = job.getEstimatedBytes(jobThreads);
+        numRunning++;
+        threadsReserved += jobThreads;
+        bytesReserved += bytes;
+        executor.execute(() -> {
+            Throwable error = null;
+            try {
+                job.compute(jobThreads);
+            } catch (Throwable e) {
+                error = e;
+            }
+            synchronized (NormalizationScheduler.this) {
+                errors[index] = error;
+                isDone[index] = true;
+                numRunning--;
+                threadsReserved -= jobThreads;
+                bytesReserved -= bytes;
+                NormalizationScheduler.this.notifyAll();
+            }
+        });
+    }
+
+    private static boolean hasFailed(Throwable[] errors, int numStarted) {
+        for (int j = 0; j < numStarted; j++) {
+            if (errors[j] != null) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Wait for the jobs already started to finish, even if interrupted, and give back their threads and memory
+     */
+    private synchronized void awaitStarted(boolean[] isDone, int numStarted) {
+        boolean isInterrupted = false;
+        for (int j = 0; j < numStarted; j++) {
+            while (!isDone[j]) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                }
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static IOException getAsIOException(Throwable error) {
+        if (error instanceof IOException) return (IOException) error;
+        if (error instanceof RuntimeException) throw (RuntimeException) error;
+        if (error instanceof Error) throw (Error) error;
+        return new IOException(error);
+    }
+}
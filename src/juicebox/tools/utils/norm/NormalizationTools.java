@@ -42,10 +42,9 @@ public class NormalizationTools {
     public static Map<Chromosome, NormalizationVector> parCreateNormVectorMap(ChromosomeHandler chromosomeHandler,
                                                                               int resolution, ListOfFloatArrays vector,
                                                                               NormalizationType norm, HiCZoom zoom) {
-        final Map<Chromosome, NormalizationVector> normVectorMap = new LinkedHashMap<>();
-
         final AtomicInteger index = new AtomicInteger(0);
         Chromosome[] chromosomes = chromosomeHandler.getChromosomeArrayWithoutAllByAll();
+        final NormalizationVector[] normVectors = new NormalizationVector[chromosomes.length];
         long[] offsets = createOffsets(chromosomes, resolution);
         ParallelizationTools.launchParallelizedCode(IteratorContainer.numCPUMatrixThreads, () -> {
             int i = index.getAndIncrement();
@@ -57,13 +56,16 @@ public class NormalizationTools {
                 for (long k = 0; k < chrNV.getLength(); k++) { // todo optimize a version with system.arraycopy and long
                     chrNV.set(k, vector.get(offset + k));
                 }
-                synchronized (normVectorMap) {
-                    normVectorMap.put(c1, new NormalizationVector(norm, c1.getIndex(), zoom.getUnit(), resolution, chrNV));
-                }
+                normVectors[i] = new NormalizationVector(norm, c1.getIndex(), zoom.getUnit(), resolution, chrNV);
                 i = index.getAndIncrement();
             }
         });
 
+        // in chromosome order, whichever thread finished first, so the vectors are always written in the same order
+        Map<Chromosome, NormalizationVector> normVectorMap = new LinkedHashMap<>();
+        for (int i = 0; i < chromosomes.length; i++) {
+            normVectorMap.put(chromosomes[i], normVectors[i]);
+        }
         return normVectorMap;
     }
 
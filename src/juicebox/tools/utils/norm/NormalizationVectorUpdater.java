@@ -29,6 +29,8 @@ import javastraw.reader.DatasetReaderV2;
 import javastraw.reader.basics.Chromosome;
 import javastraw.reader.basics.ChromosomeHandler;
 import javastraw.reader.datastructures.ListOfFloatArrays;
+import javastraw.reader.expected.ExpectedValueFunction;
+import javastraw.reader.expected.ExpectedValueFunctionImpl;
 import javastraw.reader.mzd.MatrixZoomData;
 import javastraw.reader.type.HiCZoom;
 import javastraw.reader.type.NormalizationHandler;
@@ -36,10 +38,14 @@ import javastraw.reader.type.NormalizationType;
 import javastraw.tools.HiCFileTools;
 import juicebox.HiCGlobals;
 import juicebox.tools.utils.original.ExpectedValueCalculation;
-import org.broad.igv.tdf.BufferedByteWriter;
+import org.broad.igv.util.Pair;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 /**
  * Update an existing hic file with new normalization vectors (included expected value vectors)
@@ -49,15 +55,35 @@ import java.util.*;
  */
 public class NormalizationVectorUpdater extends NormVectorUpdater {
 
-    protected List<BufferedByteWriter> normVectorBuffers = new ArrayList<>();
-    protected List<NormalizationVectorIndexEntry> normVectorIndices = new ArrayList<>();
+    // norm vectors are written here as they are finished (only set while updating a file)
+    protected NormVectorWriter normVectorWriter = null;
     protected List<ExpectedValueCalculation> expectedValueCalculations = new ArrayList<>();
 
     // Keep track of chromosomes that fail to converge, so we don't try them at higher resolutions.
-    protected Set<Chromosome> krBPFailedChromosomes = new HashSet<>();
-    protected Set<Chromosome> krFragFailedChromosomes = new HashSet<>();
-    protected Set<Chromosome> mmbaBPFailedChromosomes = new HashSet<>();
-    protected Set<Chromosome> mmbaFragFailedChromosomes = new HashSet<>();
+    protected Set<Chromosome> krBPFailedChromosomes = ConcurrentHashMap.newKeySet();
+    protected Set<Chromosome> krFragFailedChromosomes = ConcurrentHashMap.newKeySet();
+    protected Set<Chromosome> mmbaBPFailedChromosomes = ConcurrentHashMap.newKeySet();
+    protected Set<Chromosome> mmbaFragFailedChromosomes = ConcurrentHashMap.newKeySet();
+
+    // Last SCALE vector of each chromosome (with its zoom), used to warm start the next finer resolution.
+    protected Map<Chromosome, Pair<HiCZoom, ListOfFloatArrays>> scaleWarmStarts = new ConcurrentHashMap<>();
+
+    // number of chromosomes normalized at the same time
+    protected final int numThreads;
+    // threads and memory shared with the other files of a batch (null to schedule each zoom on its own)
+    private final NormalizationScheduler sharedScheduler;
+    // calculated vectors from earlier runs (null if not caching)
+    protected NormCache normCache = null;
+    // norms already in the file, which are kept instead of being calculated again (null to recalculate everything)
+    protected ExistingNorms existingNorms = null;
+    // part of the work done by this process, written to a sidecar file (null to do everything and write the .hic file)
+    private NormShard shard = null;
+    // chromosomes normalized by this shard (null for all of them)
+    private Set<Integer> shardChromosomes = null;
+    // finished norms of this run, kept in case it has to be restarted (null if not checkpointing)
+    protected NormCheckpoint checkpoint = null;
+    // most contacts per block seen so far at the current zoom (0 until a matrix has been loaded), for the memory estimates
+    private long contactsPerBlock = 0;
 
     // norms to build; gets overwritten
     protected boolean weShouldBuildVC = true;
@@ -65,20 +91,52 @@ public class NormalizationVectorUpdater extends NormVectorUpdater {
     protected boolean weShouldBuildKR = true;
     protected boolean weShouldBuildScale = true;
 
+    // memory estimate for a chromosome, before any contacts have been seen
+    private static final long DEFAULT_CONTACTS_PER_BLOCK = 1 << 19;
+    // contact records plus their CSR copy
+    private static final long BYTES_PER_CONTACT = 48;
+    // norm vectors and the KR / SCALE work vectors
+    private static final long BYTES_PER_ROW = 128;
+
+    public NormalizationVectorUpdater() {
+        this(1);
+    }
+
+    public NormalizationVectorUpdater(int numThreads) {
+        this(numThreads, null);
+    }
+
+    NormalizationVectorUpdater(int numThreads, NormalizationScheduler sharedScheduler) {
+        this.numThreads = Math.max(1, numThreads);
+        this.sharedScheduler = sharedScheduler;
+    }
+
+    /**
+     * Only calculate the norms of this shard, and write them to its sidecar file instead of the .hic file
+     */
+    public void setShard(NormShard shard) {
+        this.shard = shard;
+    }
+
     protected static void printNormTiming(String norm, Chromosome chr, HiCZoom zoom, long currentTime) {
         if (HiCGlobals.printVerboseComments) {
             System.out.println(norm + " normalization of " + chr + " at " + zoom + " took " + (System.currentTimeMillis() - currentTime) + " milliseconds");
         }
     }
 
-    protected static void updateExpectedValueCalculationForChr(final int chrIdx, NormalizationCalculations nc, ListOfFloatArrays vec, NormalizationType type, HiCZoom zoom, MatrixZoomData zd,
-                                                               ExpectedValueCalculation ev, List<BufferedByteWriter> normVectorBuffers, List<NormalizationVectorIndexEntry> normVectorIndex) throws IOException {
-        double factor = nc.getSumFactor(vec);
-        vec.multiplyEverythingBy(factor);
-
-        updateNormVectorIndexWithVector(normVectorIndex, normVectorBuffers, vec, chrIdx, type, zoom);
-
-        ev.addDistancesFromIterator(chrIdx, zd.getIteratorContainer(), vec);
+    /**
+     * Scale each of the new vectors so the normalized matrix has the same sum as the original, and sum its
+     * normalized contacts by distance for the expected values, in one pass over the contacts for all of them
+     */
+    protected static void finishNorms(NormalizationCalculations nc, ChromosomeNorms norms) {
+        List<ListOfFloatArrays> vectors = norms.getVectors();
+        if (vectors.isEmpty()) return;
+        NormalizedSums[] sums = nc.getNormalizedSums(vectors);
+        for (int i = 0; i < vectors.size(); i++) {
+            double factor = sums[i].getSumFactor();
+            vectors.get(i).multiplyEverythingBy(factor);
+            norms.setDistanceSums(i, sums[i].getScaledDistanceSums(factor));
+        }
     }
 
     protected void reEvaluateWhichIntraNormsToBuild(List<NormalizationType> normalizationsToBuild) {
@@ -88,10 +146,9 @@ public class NormalizationVectorUpdater extends NormVectorUpdater {
         weShouldBuildScale = normalizationsToBuild.contains(NormalizationHandler.SCALE);
     }
 
-    protected void buildVCOrVCSQRT(boolean weShouldBuildVC, boolean weShouldBuildVCSqrt, Chromosome chr,
-                                   NormalizationCalculations nc, HiCZoom zoom, MatrixZoomData zd, ExpectedValueCalculation evVC,
-                                   ExpectedValueCalculation evVCSqrt) throws IOException {
-        final int chrIdx = chr.getIndex();
+    protected void buildVCOrVCSQRT(boolean weShouldBuildVC, boolean weShouldBuildVCSqrt,
+                                   NormalizationCalculations nc, ExpectedValueCalculation evVC,
+                                   ExpectedValueCalculation evVCSqrt, ChromosomeNorms norms) {
         ListOfFloatArrays vc = nc.computeVC();
 
         ListOfFloatArrays vcSqrt = new ListOfFloatArrays(vc.getLength());
@@ -101,25 +158,82 @@ public class NormalizationVectorUpdater extends NormVectorUpdater {
             }
         }
         if (weShouldBuildVC) {
-            updateExpectedValueCalculationForChr(chrIdx, nc, vc, NormalizationHandler.VC, zoom, zd, evVC, normVectorBuffers, normVectorIndices);
+            norms.add(NormalizationHandler.VC, vc, evVC);
         }
         if (weShouldBuildVCSqrt) {
-            updateExpectedValueCalculationForChr(chrIdx, nc, vcSqrt, NormalizationHandler.VC_SQRT, zoom, zd, evVCSqrt, normVectorBuffers, normVectorIndices);
+            norms.add(NormalizationHandler.VC_SQRT, vcSqrt, evVCSqrt);
+        }
+    }
+
+    /**
+     * @return whether the intra-chromosomal norm should be calculated at this zoom
+     */
+    protected boolean shouldBuild(NormalizationType type, HiCZoom zoom, Map<NormalizationType, Integer> resolutionsToBuildTo) {
+        boolean requested;
+        if (type.equals(NormalizationHandler.VC)) {
+            requested = weShouldBuildVC;
+        } else if (type.equals(NormalizationHandler.VC_SQRT)) {
+            requested = weShouldBuildVCSqrt;
+        } else if (type.equals(NormalizationHandler.KR)) {
+            requested = weShouldBuildKR;
+        } else if (type.equals(NormalizationHandler.SCALE)) {
+            requested = weShouldBuildScale;
+        } else {
+            return false;
         }
+        return requested && zoom.getBinSize() >= resolutionsToBuildTo.get(type)
+                && (existingNorms == null || !existingNorms.isComplete(zoom, type));
     }
 
-    protected void buildKR(Chromosome chr, NormalizationCalculations nc, HiCZoom zoom, MatrixZoomData zd, ExpectedValueCalculation evKR) throws IOException {
+    private boolean shouldBuildAnyIntraNorm(HiCZoom zoom, Map<NormalizationType, Integer> resolutionsToBuildTo) {
+        return shouldBuild(NormalizationHandler.VC, zoom, resolutionsToBuildTo)
+                || shouldBuild(NormalizationHandler.VC_SQRT, zoom, resolutionsToBuildTo)
+                || shouldBuild(NormalizationHandler.KR, zoom, resolutionsToBuildTo)
+                || shouldBuild(NormalizationHandler.SCALE, zoom, resolutionsToBuildTo);
+    }
+
+    /**
+     * @return the requested norms (intra-chromosomal and genome-wide) that will be calculated at this zoom
+     */
+    private List<NormalizationType> getNormsToBuild(HiCZoom zoom, List<NormalizationType> normalizationsToBuild,
+                                                    Map<NormalizationType, Integer> resolutionsToBuildTo,
+                                                    int genomeWideLowestResolutionAllowed) {
+        boolean genomeWideAllowed = zoom.getUnit() == HiCZoom.HiCUnit.BP && zoom.getBinSize() >= genomeWideLowestResolutionAllowed;
+        List<NormalizationType> normsToBuild = new ArrayList<>();
+        for (NormalizationType type : normalizationsToBuild) {
+            if (NormalizationHandler.isGenomeWideNorm(type)) {
+                if (genomeWideAllowed && zoom.getBinSize() >= resolutionsToBuildTo.get(type)
+                        && (existingNorms == null || !existingNorms.isComplete(zoom, type))) {
+                    normsToBuild.add(type);
+                }
+            } else if (shouldBuild(type, zoom, resolutionsToBuildTo)) {
+                normsToBuild.add(type);
+            }
+        }
+        return normsToBuild;
+    }
+
+    /**
+     * @return the vector from the norm cache, or calculated (and then cached)
+     */
+    protected ListOfFloatArrays getNorm(NormalizationCalculations nc, HiCZoom zoom, NormalizationType type,
+                                        Supplier<ListOfFloatArrays> calculate) {
+        if (normCache == null) return calculate.get();
+        return normCache.get(nc, zoom, type, calculate);
+    }
+
+    protected void buildKR(Chromosome chr, NormalizationCalculations nc, HiCZoom zoom, ExpectedValueCalculation evKR,
+                           ChromosomeNorms norms) {
         Set<Chromosome> failureSetKR = zoom.getUnit() == HiCZoom.HiCUnit.FRAG ? krFragFailedChromosomes : krBPFailedChromosomes;
-        final int chrIdx = chr.getIndex();
 
         long currentTime = System.currentTimeMillis();
         if (!failureSetKR.contains(chr)) {
-            ListOfFloatArrays kr = nc.computeKR();
+            ListOfFloatArrays kr = getNorm(nc, zoom, NormalizationHandler.KR, nc::computeKR);
             if (kr == null) {
                 failureSetKR.add(chr);
                 printNormTiming("FAILED KR", chr, zoom, currentTime);
             } else {
-                updateExpectedValueCalculationForChr(chrIdx, nc, kr, NormalizationHandler.KR, zoom, zd, evKR, normVectorBuffers, normVectorIndices);
+                norms.add(NormalizationHandler.KR, kr, evKR);
                 printNormTiming("KR", chr, zoom, currentTime);
             }
         }
@@ -139,110 +253,650 @@ public class NormalizationVectorUpdater extends NormVectorUpdater {
         DatasetReaderV2 reader = new DatasetReaderV2(path, false);
         Dataset ds = reader.read();
         HiCGlobals.verifySupportedHiCFileWritingVersion(reader.getVersion());
+        // for the checkpoint and the sidecar file, which must not be used with another version of the file
+        String hicFingerprint = HiCGlobals.CHECKPOINT_NORMS || shard != null ? HicFingerprint.get(path, reader) : null;
 
         ChromosomeHandler chromosomeHandler = ds.getChromosomeHandler();
         Map<String, Integer> fragCountMap = ds.getFragmentCounts();
         List<HiCZoom> resolutions = ds.getAllPossibleResolutions();
 
         reEvaluateWhichIntraNormsToBuild(normalizationsToBuild);
+        normCache = NormCache.create();
+        existingNorms = HiCGlobals.RECOMPUTE_ALL_NORMS ? null : new ExistingNorms(ds);
+        shardChromosomes = shard == null ? null : shard.getChromosomeIndices(chromosomeHandler);
 
-        normVectorBuffers.add(new BufferedByteWriter());
+        List<HiCZoom> zoomsToNormalize = new ArrayList<>();
+        // keys (as in the expected value map) of the norms calculated in this run; any others in the file are kept
+        Set<String> recalculated = new HashSet<>();
         for (HiCZoom zoom : resolutions) {
             if (zoom.getBinSize() < minResolution) {
                 System.out.println("skipping zoom" + zoom);
                 continue;
             }
             if (noFrag && zoom.getUnit() == HiCZoom.HiCUnit.FRAG) continue;
+            List<NormalizationType> normsToBuild = getNormsToBuild(zoom, normalizationsToBuild, resolutionsToBuildTo,
+                    genomeWideLowestResolutionAllowed);
+            if (normsToBuild.isEmpty()) {
+                System.out.println("norms already calculated for zoom " + zoom);
+                continue;
+            }
+            for (NormalizationType type : normsToBuild) {
+                recalculated.add(ExpectedValueFunctionImpl.getKey(zoom, type));
+            }
+            zoomsToNormalize.add(zoom);
+        }
 
-            System.out.println();
-            System.out.print("Calculating norms for zoom " + zoom);
+        if (HiCGlobals.CHECKPOINT_NORMS) {
+            File checkpointFile = new File((shard == null ? path : shard.getFile().getPath()) + ".checkpoint");
+            checkpoint = NormCheckpoint.open(checkpointFile, ds.getNormalizationHandler(), hicFingerprint,
+                    getCheckpointSettings(normalizationsToBuild, resolutionsToBuildTo, genomeWideLowestResolutionAllowed, noFrag));
+        }
+        try {
+            Map<HiCZoom, ZoomNorms> aggregatedZoomNorms = new HashMap<>();
+            if (HiCGlobals.AGGREGATE_RESOLUTIONS) {
+                aggregatedZoomNorms = buildAggregatedNorms(reader, ds, zoomsToNormalize, resolutionsToBuildTo);
+                ds.clearCache();
+            }
 
-            // compute genome-wide normalizations
-            if (zoom.getUnit() == HiCZoom.HiCUnit.BP && zoom.getBinSize() >= genomeWideLowestResolutionAllowed) {
-                GenomeWideNormalizationVectorUpdater.updateHicFileForGWfromPreAddNormOnly(ds, zoom, normalizationsToBuild, resolutionsToBuildTo,
-                        normVectorIndices, normVectorBuffers, expectedValueCalculations);
+            try (NormVectorWriter writer = new NormVectorWriter()) {
+                normVectorWriter = writer;
+                for (HiCZoom zoom : zoomsToNormalize) {
+                    System.out.println();
+                    System.out.print("Calculating norms for zoom " + zoom);
+
+                    // compute genome-wide normalizations
+                    if (zoom.getUnit() == HiCZoom.HiCUnit.BP && zoom.getBinSize() >= genomeWideLowestResolutionAllowed) {
+                        List<NormalizationType> normsToBuild = getNormsToBuild(zoom, normalizationsToBuild, resolutionsToBuildTo,
+                                genomeWideLowestResolutionAllowed);
+                        if (shard != null) {
+                            normsToBuild = shard.getNormsToBuild(normsToBuild);
+                        }
+                        GenomeWideNormalizationVectorUpdater.updateHicFileForGWfromPreAddNormOnly(ds, zoom, normsToBuild,
+                                resolutionsToBuildTo, normVectorWriter, expectedValueCalculations, checkpoint);
+                    }
+
+                    ds.clearCache();
+
+                    //System.out.println("genomewide normalization: " + Duration.between(A,B).toMillis());
+
+                    ZoomNorms zoomNorms = aggregatedZoomNorms.get(zoom);
+                    if (zoomNorms == null && shouldBuildAnyIntraNorm(zoom, resolutionsToBuildTo)) {
+                        Map<String, Integer> fcm = zoom.getUnit() == HiCZoom.HiCUnit.FRAG ? fragCountMap : null;
+                        zoomNorms = new ZoomNorms(chromosomeHandler, zoom, fcm);
+
+                        // Normalize the chromosomes concurrently; their norms are written in chromosome order
+                        List<ChromosomeNormJob> jobs = new ArrayList<>();
+                        for (Chromosome chr : chromosomeHandler.getChromosomeArrayWithoutAllByAll()) {
+                            if (!isInShard(chr)) continue;
+                            MatrixZoomData zd = HiCFileTools.getMatrixZoomData(ds, chr, chr, zoom);
+                            if (zd == null) continue;
+                            Integer numFragments = fcm == null ? null : fcm.get(chr.getName());
+                            long numRows = (numFragments == null ? chr.getLength() : numFragments) / zoom.getBinSize() + 1;
+                            jobs.add(new ChromosomeNormJob(chr, zd, getNumberOfBlocks(reader, zd), numRows, resolutionsToBuildTo, zoomNorms));
+                        }
+                        runJobs(jobs);
+                    }
+                    if (zoomNorms != null) {
+                        zoomNorms.write(resolutionsToBuildTo);
+                    }
+
+                    ds.clearCache();
+                }
+
+                if (shard != null) {
+                    // the norms already in the file are kept when the shards are merged
+                    shard.write(hicFingerprint, recalculated, expectedValueCalculations, normVectorWriter);
+                } else {
+                    Map<String, ExpectedValueFunction> keptExpectedValues = new LinkedHashMap<>();
+                    if (existingNorms != null) {
+                        keptExpectedValues = existingNorms.copyUnchanged(recalculated, normVectorWriter);
+                        ds.clearCache();
+                    }
+                    writeNormsToUpdateFile(reader, path, expectedValueCalculations, keptExpectedValues, normVectorWriter,
+                            "Finished writing norms");
+                }
+            } finally {
+                normVectorWriter = null;
             }
 
-            ds.clearCache();
+            if (checkpoint != null) {
+                checkpoint.finish();
+            }
+        } finally {
+            if (checkpoint != null) {
+                checkpoint.close();
+                checkpoint = null;
+            }
+        }
+    }
 
-            //System.out.println("genomewide normalization: " + Duration.between(A,B).toMillis());
+    /**
+     * @return everything besides the file that changes which norms are calculated, or how
+     */
+    private String getCheckpointSettings(List<NormalizationType> normalizationsToBuild, Map<NormalizationType, Integer> resolutionsToBuildTo,
+                                         int genomeWideLowestResolutionAllowed, boolean noFrag) {
+        StringBuilder settings = new StringBuilder();
+        for (NormalizationType type : normalizationsToBuild) {
+            settings.append(type).append(':').append(resolutionsToBuildTo.get(type)).append(' ');
+        }
+        settings.append("gw:").append(genomeWideLowestResolutionAllowed)
+                .append(" noFrag:").append(noFrag)
+                .append(" warmStartScale:").append(HiCGlobals.WARM_START_SCALE)
+                .append(" quantileSketch:").append(HiCGlobals.USE_QUANTILE_SKETCH)
+                .append(" accelerateScale:").append(HiCGlobals.ACCELERATE_SCALE)
+                .append(" mixedPrecisionKR:").append(HiCGlobals.MIXED_PRECISION_KR)
+                .append(" abortNonConverging:").append(HiCGlobals.ABORT_NON_CONVERGING)
+                .append(" deterministicReductions:").append(HiCGlobals.DETERMINISTIC_REDUCTIONS)
+                .append(" aggregate:").append(HiCGlobals.AGGREGATE_RESOLUTIONS)
+                .append(" recomputeAll:").append(HiCGlobals.RECOMPUTE_ALL_NORMS);
+        if (shard != null) {
+            settings.append(' ').append(shard);
+        }
+        return settings.toString();
+    }
 
-            Map<String, Integer> fcm = zoom.getUnit() == HiCZoom.HiCUnit.FRAG ? fragCountMap : null;
+    /**
+     * Normalize every chromosome at all the bp resolutions that are multiples of the finest one being normalized,
+     * reading each chromosome only once (at the finest resolution) and summing its bins into the coarser ones.
+     *
+     * @return norms of each of those resolutions, not yet written out; empty if there is nothing to aggregate
+     */
+    private Map<HiCZoom, ZoomNorms> buildAggregatedNorms(DatasetReaderV2 reader, Dataset ds, List<HiCZoom> zoomsToNormalize,
+                                                         Map<NormalizationType, Integer> resolutionsToBuildTo) throws IOException {
+        Map<HiCZoom, ZoomNorms> aggregatedZoomNorms = new HashMap<>();
+        HiCZoom finestZoom = null;
+        for (HiCZoom zoom : zoomsToNormalize) {
+            if (zoom.getUnit() == HiCZoom.HiCUnit.BP && shouldBuildAnyIntraNorm(zoom, resolutionsToBuildTo) && (finestZoom == null || zoom.getBinSize() < finestZoom.getBinSize())) {
+                finestZoom = zoom;
+            }
+        }
+        if (finestZoom == null) return aggregatedZoomNorms;
+
+        // coarse to fine, as the zooms are normalized without aggregation
+        List<ZoomNorms> zooms = new ArrayList<>();
+        for (HiCZoom zoom : zoomsToNormalize) {
+            if (zoom.getUnit() == HiCZoom.HiCUnit.BP && zoom.getBinSize() % finestZoom.getBinSize() == 0
+                    && shouldBuildAnyIntraNorm(zoom, resolutionsToBuildTo)) {
+                zooms.add(new ZoomNorms(ds.getChromosomeHandler(), zoom, null));
+            }
+        }
+        zooms.sort((a, b) -> Integer.compare(b.zoom.getBinSize(), a.zoom.getBinSize()));
+        if (zooms.size() < 2) return aggregatedZoomNorms;
+
+        System.out.println("Calculating norms of " + zooms.size() + " resolutions from " + finestZoom);
+        List<AggregatedChromosomeNormJob> jobs = new ArrayList<>();
+        for (Chromosome chr : ds.getChromosomeHandler().getChromosomeArrayWithoutAllByAll()) {
+            if (!isInShard(chr)) continue;
+            List<MatrixZoomData> zds = new ArrayList<>();
+            for (ZoomNorms zoomNorms : zooms) {
+                zds.add(HiCFileTools.getMatrixZoomData(ds, chr, chr, zoomNorms.zoom));
+            }
+            MatrixZoomData finestZd = zds.get(zds.size() - 1);
+            if (finestZd == null) continue;
+            long numRows = chr.getLength() / finestZoom.getBinSize() + 1;
+            jobs.add(new AggregatedChromosomeNormJob(chr, zooms, zds, getNumberOfBlocks(reader, finestZd), numRows, resolutionsToBuildTo));
+        }
+        runJobs(jobs);
 
-            ExpectedValueCalculation evVC = new ExpectedValueCalculation(chromosomeHandler, zoom.getBinSize(), fcm, NormalizationHandler.VC);
-            ExpectedValueCalculation evVCSqrt = new ExpectedValueCalculation(chromosomeHandler, zoom.getBinSize(), fcm, NormalizationHandler.VC_SQRT);
-            ExpectedValueCalculation evKR = new ExpectedValueCalculation(chromosomeHandler, zoom.getBinSize(), fcm, NormalizationHandler.KR);
-            ExpectedValueCalculation evSCALE = new ExpectedValueCalculation(chromosomeHandler, zoom.getBinSize(), fcm, NormalizationHandler.SCALE);
+        for (ZoomNorms zoomNorms : zooms) {
+            aggregatedZoomNorms.put(zoomNorms.zoom, zoomNorms);
+        }
+        return aggregatedZoomNorms;
+    }
 
-            // Loop through chromosomes
-            for (Chromosome chr : chromosomeHandler.getChromosomeArrayWithoutAllByAll()) {
+    private void runJobs(List<? extends NormalizationScheduler.Job> jobs) throws IOException {
+        contactsPerBlock = 0;
+        if (sharedScheduler != null) {
+            sharedScheduler.run(jobs);
+            return;
+        }
+        NormalizationScheduler scheduler = new NormalizationScheduler(numThreads, SparseContactMatrix.getAvailableMemory());
+        try {
+            scheduler.run(jobs);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
 
-                MatrixZoomData zd = HiCFileTools.getMatrixZoomData(ds, chr, chr, zoom);
-                if (zd == null) continue;
+    /**
+     * Norms from the checkpoint, along with the failures and SCALE warm start they left behind
+     *
+     * @return norms of the chromosome at the zoom, or null if they have not been checkpointed
+     */
+    private ChromosomeNorms restoreNorms(Chromosome chr, ZoomNorms zoomNorms) throws IOException {
+        HiCZoom zoom = zoomNorms.zoom;
+        if (checkpoint == null || !checkpoint.contains(zoom, chr.getIndex())) return null;
+        ChromosomeNorms norms = checkpoint.readChromosome(zoom, chr.getIndex(), zoomNorms::getExpectedValueCalculation);
+
+        boolean isFrag = zoom.getUnit() == HiCZoom.HiCUnit.FRAG;
+        if (checkpoint.hasFailed(zoom, chr.getIndex(), NormalizationHandler.KR)) {
+            (isFrag ? krFragFailedChromosomes : krBPFailedChromosomes).add(chr);
+        }
+        if (checkpoint.hasFailed(zoom, chr.getIndex(), NormalizationHandler.SCALE)) {
+            (isFrag ? mmbaFragFailedChromosomes : mmbaBPFailedChromosomes).add(chr);
+        }
+        ListOfFloatArrays scale = norms.getVector(NormalizationHandler.SCALE);
+        if (scale != null && HiCGlobals.WARM_START_SCALE && !isFrag) {
+            scaleWarmStarts.put(chr, new Pair<>(zoom, scale));
+        }
+        return norms;
+    }
 
-                if (HiCGlobals.printVerboseComments) {
-                    System.out.println("Now Doing " + chr.getName());
-                }
+    private void checkpointNorms(Chromosome chr, ChromosomeNorms norms) throws IOException {
+        if (checkpoint == null) return;
+        boolean isFrag = norms.getZoom().getUnit() == HiCZoom.HiCUnit.FRAG;
+        checkpoint.saveChromosome(norms, (isFrag ? krFragFailedChromosomes : krBPFailedChromosomes).contains(chr),
+                (isFrag ? mmbaFragFailedChromosomes : mmbaBPFailedChromosomes).contains(chr));
+    }
 
-                NormalizationCalculations nc = new NormalizationCalculations(zd.getIteratorContainer());
-                if (!nc.isEnoughMemory()) {
-                    System.err.println("Not enough memory, skipping " + chr);
-                    continue;
-                }
+    private boolean isInShard(Chromosome chr) {
+        return shardChromosomes == null || shardChromosomes.contains(chr.getIndex());
+    }
 
-                if (weShouldBuildVC || weShouldBuildVCSqrt) {
-                    buildVCOrVCSQRT(weShouldBuildVC && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.VC),
-                            weShouldBuildVCSqrt && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.VC_SQRT),
-                            chr, nc, zoom, zd, evVC, evVCSqrt);
-                }
+    private static long getNumberOfBlocks(DatasetReaderV2 reader, MatrixZoomData zd) {
+        List<Integer> blockNumbers = reader.getBlockNumbers(zd);
+        return blockNumbers == null ? 0 : blockNumbers.size();
+    }
 
-                // KR normalization
-                if (weShouldBuildKR && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.KR)) {
-                    buildKR(chr, nc, zoom, zd, evKR);
-                }
+    /**
+     * Build the norms of one chromosome at one zoom
+     *
+     * @param numMatrixThreads threads of the job; KR and SCALE of a streamed matrix only run side by side if there are two
+     */
+    private void buildNorms(Chromosome chr, NormalizationCalculations nc, ZoomNorms zoomNorms,
+                            Map<NormalizationType, Integer> resolutionsToBuildTo, ChromosomeNorms norms,
+                            int numMatrixThreads) {
+        HiCZoom zoom = zoomNorms.zoom;
+        boolean buildVC = shouldBuild(NormalizationHandler.VC, zoom, resolutionsToBuildTo);
+        boolean buildVCSqrt = shouldBuild(NormalizationHandler.VC_SQRT, zoom, resolutionsToBuildTo);
+        if (buildVC || buildVCSqrt) {
+            buildVCOrVCSQRT(buildVC, buildVCSqrt, nc, zoomNorms.evVC, zoomNorms.evVCSqrt, norms);
+        }
 
-                // Fast scaling normalization
-                if (weShouldBuildScale && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.SCALE)) {
-                    buildScale(chr, nc, zoom, zd, evSCALE);
-                }
+        boolean buildKR = shouldBuild(NormalizationHandler.KR, zoom, resolutionsToBuildTo);
+        boolean buildScale = shouldBuild(NormalizationHandler.SCALE, zoom, resolutionsToBuildTo);
+        if (buildKR && buildScale && nc.getMatrix() == null && numMatrixThreads > 1) {
+            buildKRAndScaleTogether(chr, nc, zoomNorms, norms);
+        } else {
+            // KR normalization
+            if (buildKR) {
+                buildKR(chr, nc, zoom, zoomNorms.evKR, norms);
+            }
 
-                zd.clearCache();
+            // Fast scaling normalization
+            if (buildScale) {
+                buildScale(chr, nc, zoom, zoomNorms.evSCALE, norms);
             }
+        }
 
-            if (weShouldBuildVC && evVC.hasData() && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.VC)) {
-                expectedValueCalculations.add(evVC);
+        finishNorms(nc, norms);
+    }
+
+    /**
+     * Build KR on a second thread while SCALE runs on this one, so that their multiplies share each pass
+     * over contacts streamed from the file instead of every pass reading and inflating the chromosome again.
+     * The second thread is one of the job's threads.
+     */
+    private void buildKRAndScaleTogether(Chromosome chr, NormalizationCalculations nc, ZoomNorms zoomNorms,
+                                         ChromosomeNorms norms) {
+        HiCZoom zoom = zoomNorms.zoom;
+        // both use the row statistics; calculate them before either starts
+        nc.getRowStatistics();
+        SharedContactPasses passes = new SharedContactPasses(nc.getIteratorContainer(), 2);
+        nc.setSharedPasses(passes);
+
+        ChromosomeNorms krNorms = new ChromosomeNorms(chr.getIndex(), zoom);
+        ChromosomeNorms scaleNorms = new ChromosomeNorms(chr.getIndex(), zoom);
+        AtomicReference<Throwable> krFailure = new AtomicReference<>();
+        Thread krThread = new Thread(() -> {
+            try {
+                buildKR(chr, nc, zoom, zoomNorms.evKR, krNorms);
+            } catch (Throwable e) {
+                krFailure.set(e);
+            } finally {
+                passes.leave();
             }
-            if (weShouldBuildVCSqrt && evVCSqrt.hasData() && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.VC_SQRT)) {
-                expectedValueCalculations.add(evVCSqrt);
+        }, "KR " + chr.getName());
+        krThread.start();
+        try {
+            buildScale(chr, nc, zoom, zoomNorms.evSCALE, scaleNorms);
+        } finally {
+            passes.leave();
+            try {
+                krThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while calculating KR of " + chr, e);
+            } finally {
+                nc.setSharedPasses(null);
             }
-            if (weShouldBuildKR && evKR.hasData() && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.KR)) {
-                expectedValueCalculations.add(evKR);
+        }
+        Throwable failure = krFailure.get();
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw (RuntimeException) failure;
+        }
+
+        norms.addAll(krNorms);
+        norms.addAll(scaleNorms);
+        if (HiCGlobals.printVerboseComments) {
+            System.out.println("KR and SCALE of " + chr.getName() + " at " + zoom + " shared "
+                    + passes.getNumberOfPasses() + " passes over the contacts");
+        }
+    }
+
+    /**
+     * Read the chromosome at the zoom from the file and build its norms
+     *
+     * @return the norms; nothing is built if even the out-of-core calculation does not fit in memory
+     */
+    private ChromosomeNorms buildNormsFromFile(Chromosome chr, MatrixZoomData zd, ZoomNorms zoomNorms,
+                                               Map<NormalizationType, Integer> resolutionsToBuildTo, int numMatrixThreads) {
+        ChromosomeNorms norms = new ChromosomeNorms(chr.getIndex(), zoomNorms.zoom);
+        if (HiCGlobals.printVerboseComments) {
+            System.out.println("Now Doing " + chr.getName());
+        }
+
+        NormalizationCalculations nc = new NormalizationCalculations(zd.getIteratorContainer(), numMatrixThreads);
+        if (!nc.isEnoughMemory()) {
+            zd.clearCache();
+            nc = NormalizationCalculations.createOutOfCore(zd.getFromFileIteratorContainer(), numMatrixThreads);
+            if (nc == null) {
+                System.err.println("Not enough memory, skipping " + chr);
+                return norms;
             }
-            if (weShouldBuildScale && evSCALE.hasData() && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.SCALE)) {
-                expectedValueCalculations.add(evSCALE);
+            if (HiCGlobals.printVerboseComments) {
+                System.out.println("Normalizing " + chr.getName() + " from a memory-mapped file");
             }
+        }
+        if (nc.getMatrix() != null) {
+            // all passes for this chromosome use the CSR copy from here on
+            zd.clearCache();
+            norms.setNumberOfContacts(nc.getMatrix().getNumberOfContacts());
+        }
 
-            ds.clearCache();
+        try {
+            buildNorms(chr, nc, zoomNorms, resolutionsToBuildTo, norms, numMatrixThreads);
+        } finally {
+            nc.release();
+        }
+        zd.clearCache();
+        return norms;
+    }
+
+    /**
+     * @return estimated memory for a chromosome from the number of blocks in its block index,
+     * with the accumulators and buffers of numThreads workers
+     */
+    private long estimateMemory(long numBlocks, long numRows, int numThreads) {
+        long numContacts = numBlocks * (contactsPerBlock > 0 ? contactsPerBlock : DEFAULT_CONTACTS_PER_BLOCK);
+        return BYTES_PER_CONTACT * numContacts + BYTES_PER_ROW * numRows
+                + SparseContactMatrix.estimateWorkerBytes(numRows, numContacts, getNumIntraNorms(), numThreads);
+    }
+
+    /**
+     * @return number of intra-chromosomal norms requested, whose sums by distance are all gathered in the same pass
+     */
+    private int getNumIntraNorms() {
+        int numNorms = 0;
+        if (weShouldBuildVC) numNorms++;
+        if (weShouldBuildVCSqrt) numNorms++;
+        if (weShouldBuildKR) numNorms++;
+        if (weShouldBuildScale) numNorms++;
+        return numNorms;
+    }
+
+    private void updateContactsPerBlock(long numContacts, long numBlocks) {
+        if (numContacts > 0 && numBlocks > 0) {
+            contactsPerBlock = Math.max(contactsPerBlock, (numContacts + numBlocks - 1) / numBlocks);
         }
-        writeNormsToUpdateFile(reader, path, true, expectedValueCalculations, null, normVectorIndices,
-                normVectorBuffers, "Finished writing norms");
     }
     
-    protected void buildScale(Chromosome chr, NormalizationCalculations nc, HiCZoom zoom, MatrixZoomData zd, ExpectedValueCalculation evSCALE) throws IOException {
+    protected void buildScale(Chromosome chr, NormalizationCalculations nc, HiCZoom zoom, ExpectedValueCalculation evSCALE,
+                              ChromosomeNorms norms) {
         Set<Chromosome> failureSetMMBA = zoom.getUnit() == HiCZoom.HiCUnit.FRAG ? mmbaFragFailedChromosomes : mmbaBPFailedChromosomes;
-        final int chrIdx = chr.getIndex();
         long currentTime = System.currentTimeMillis();
         
         if (!failureSetMMBA.contains(chr)) {
-            ListOfFloatArrays mmba = nc.computeMMBA();
+            ListOfFloatArrays mmba = getNorm(nc, zoom, NormalizationHandler.SCALE,
+                    () -> nc.computeMMBA(getScaleWarmStart(chr, zoom, nc)));
             
             if (mmba == null) {
                 failureSetMMBA.add(chr);
                 printNormTiming("FAILED SCALE", chr, zoom, currentTime);
             } else {
-                updateExpectedValueCalculationForChr(chrIdx, nc, mmba, NormalizationHandler.SCALE, zoom, zd, evSCALE, normVectorBuffers, normVectorIndices);
+                norms.add(NormalizationHandler.SCALE, mmba, evSCALE);
                 printNormTiming("SCALE", chr, zoom, currentTime);
+                if (HiCGlobals.WARM_START_SCALE && zoom.getUnit() == HiCZoom.HiCUnit.BP) {
+                    scaleWarmStarts.put(chr, new Pair<>(zoom, mmba));
+                }
+            }
+        }
+    }
+
+    /**
+     * Expected values of one zoom, and the chromosome norms waiting to be written for it
+     */
+    private class ZoomNorms {
+        private final HiCZoom zoom;
+        private final ExpectedValueCalculation evVC, evVCSqrt, evKR, evSCALE;
+        private final List<ChromosomeNorms> chromosomeNorms = new ArrayList<>();
+
+        ZoomNorms(ChromosomeHandler chromosomeHandler, HiCZoom zoom, Map<String, Integer> fcm) {
+            this.zoom = zoom;
+            evVC = new ExpectedValueCalculation(chromosomeHandler, zoom.getBinSize(), fcm, NormalizationHandler.VC);
+            evVCSqrt = new ExpectedValueCalculation(chromosomeHandler, zoom.getBinSize(), fcm, NormalizationHandler.VC_SQRT);
+            evKR = new ExpectedValueCalculation(chromosomeHandler, zoom.getBinSize(), fcm, NormalizationHandler.KR);
+            evSCALE = new ExpectedValueCalculation(chromosomeHandler, zoom.getBinSize(), fcm, NormalizationHandler.SCALE);
+        }
+
+        /**
+         * @return the expected values the norm type adds its distances to
+         */
+        ExpectedValueCalculation getExpectedValueCalculation(NormalizationType type) {
+            if (type.equals(NormalizationHandler.VC)) return evVC;
+            if (type.equals(NormalizationHandler.VC_SQRT)) return evVCSqrt;
+            if (type.equals(NormalizationHandler.KR)) return evKR;
+            return evSCALE;
+        }
+
+        /**
+         * Write the chromosome norms in the order they were added, then keep the expected values that have data
+         */
+        void write(Map<NormalizationType, Integer> resolutionsToBuildTo) throws IOException {
+            for (ChromosomeNorms norms : chromosomeNorms) {
+                norms.write(normVectorWriter);
+            }
+            chromosomeNorms.clear();
+
+            if (evVC.hasData() && shouldBuild(NormalizationHandler.VC, zoom, resolutionsToBuildTo)) {
+                expectedValueCalculations.add(evVC);
+            }
+            if (evVCSqrt.hasData() && shouldBuild(NormalizationHandler.VC_SQRT, zoom, resolutionsToBuildTo)) {
+                expectedValueCalculations.add(evVCSqrt);
+            }
+            if (evKR.hasData() && shouldBuild(NormalizationHandler.KR, zoom, resolutionsToBuildTo)) {
+                expectedValueCalculations.add(evKR);
+            }
+            if (evSCALE.hasData() && shouldBuild(NormalizationHandler.SCALE, zoom, resolutionsToBuildTo)) {
+                expectedValueCalculations.add(evSCALE);
+            }
+        }
+    }
+
+    /**
+     * Normalizations of one chromosome at one zoom
+     */
+    private class ChromosomeNormJob implements NormalizationScheduler.Job {
+        private final Chromosome chr;
+        private final MatrixZoomData zd;
+        private final long numBlocks, numRows;
+        private final Map<NormalizationType, Integer> resolutionsToBuildTo;
+        private final ZoomNorms zoomNorms;
+        private ChromosomeNorms norms;
+
+        ChromosomeNormJob(Chromosome chr, MatrixZoomData zd, long numBlocks, long numRows,
+                          Map<NormalizationType, Integer> resolutionsToBuildTo, ZoomNorms zoomNorms) {
+            this.chr = chr;
+            this.zd = zd;
+            this.numBlocks = numBlocks;
+            this.numRows = numRows;
+            this.resolutionsToBuildTo = resolutionsToBuildTo;
+            this.zoomNorms = zoomNorms;
+        }
+
+        @Override
+        public long getEstimatedBytes(int numThreads) {
+            return estimateMemory(numBlocks, numRows, numThreads);
+        }
+
+        @Override
+        public void compute(int numMatrixThreads) throws IOException {
+            norms = restoreNorms(chr, zoomNorms);
+            if (norms == null) {
+                norms = buildNormsFromFile(chr, zd, zoomNorms, resolutionsToBuildTo, numMatrixThreads);
+                checkpointNorms(chr, norms);
+            }
+        }
+
+        @Override
+        public void commit() {
+            zoomNorms.chromosomeNorms.add(norms);
+            updateContactsPerBlock(norms.getNumberOfContacts(), numBlocks);
+        }
+    }
+
+    /**
+     * Normalizations of one chromosome at several zooms, all summed from the finest one
+     */
+    private class AggregatedChromosomeNormJob implements NormalizationScheduler.Job {
+        private final Chromosome chr;
+        // coarse to fine; the last one is read from the file
+        private final List<ZoomNorms> zooms;
+        private final List<MatrixZoomData> zds;
+        private final long numBlocks, numRows;
+        private final Map<NormalizationType, Integer> resolutionsToBuildTo;
+        private final List<ChromosomeNorms> results = new ArrayList<>();
+
+        AggregatedChromosomeNormJob(Chromosome chr, List<ZoomNorms> zooms, List<MatrixZoomData> zds, long numBlocks,
+                                    long numRows, Map<NormalizationType, Integer> resolutionsToBuildTo) {
+            this.chr = chr;
+            this.zooms = zooms;
+            this.zds = zds;
+            this.numBlocks = numBlocks;
+            this.numRows = numRows;
+            this.resolutionsToBuildTo = resolutionsToBuildTo;
+        }
+
+        /**
+         * @return estimate for the finest zoom, plus as much again for the coarser ones
+         */
+        @Override
+        public long getEstimatedBytes(int numThreads) {
+            return 2 * estimateMemory(numBlocks, numRows, numThreads);
+        }
+
+        @Override
+        public void compute(int numMatrixThreads) throws IOException {
+            if (restoreAll()) return;
+            computeAll(numMatrixThreads);
+            for (ChromosomeNorms norms : results) {
+                if (norms != null) {
+                    checkpointNorms(chr, norms);
+                }
+            }
+        }
+
+        /**
+         * @return whether the norms of every zoom were in the checkpoint
+         */
+        private boolean restoreAll() throws IOException {
+            if (checkpoint == null) return false;
+            for (int z = 0; z < zooms.size(); z++) {
+                if (zds.get(z) != null && !checkpoint.contains(zooms.get(z).zoom, chr.getIndex())) return false;
+            }
+            for (int z = 0; z < zooms.size(); z++) {
+                results.add(zds.get(z) == null ? null : restoreNorms(chr, zooms.get(z)));
+            }
+            return true;
+        }
+
+        private void computeAll(int numMatrixThreads) {
+            int numZooms = zooms.size();
+            MatrixZoomData finestZd = zds.get(numZooms - 1);
+            if (HiCGlobals.printVerboseComments) {
+                System.out.println("Now Doing " + chr.getName());
+            }
+            // deflated matrices (when conserving RAM) cannot be aggregated
+            SparseContactMatrix finest = HiCGlobals.USE_ITERATOR_NOT_ALL_IN_RAM ? null
+                    : SparseContactMatrix.create(finestZd.getIteratorContainer(), numMatrixThreads);
+            finestZd.clearCache();
+            if (finest == null) {
+                // does not fit in memory; read every zoom from the file instead
+                for (int z = 0; z < numZooms; z++) {
+                    MatrixZoomData zd = zds.get(z);
+                    results.add(zd == null ? null : buildNormsFromFile(chr, zd, zooms.get(z), resolutionsToBuildTo, numMatrixThreads));
+                }
+                return;
+            }
+
+            // from fine to coarse, sum each zoom from the coarsest one already done that divides it
+            SparseContactMatrix[] matrices = new SparseContactMatrix[numZooms];
+            matrices[numZooms - 1] = finest;
+            for (int z = numZooms - 2; z >= 0; z--) {
+                int binSize = zooms.get(z).zoom.getBinSize();
+                int source = numZooms - 1;
+                for (int s = z + 1; s < numZooms; s++) {
+                    if (binSize % zooms.get(s).zoom.getBinSize() == 0) {
+                        source = s;
+                        break;
+                    }
+                }
+                matrices[z] = matrices[source].aggregate(binSize / zooms.get(source).zoom.getBinSize());
             }
+
+            // then normalize from coarse to fine, like the zooms read from the file
+            for (int z = 0; z < numZooms; z++) {
+                if (zds.get(z) == null) {
+                    results.add(null);
+                    matrices[z] = null;
+                    continue;
+                }
+                ChromosomeNorms norms = new ChromosomeNorms(chr.getIndex(), zooms.get(z).zoom);
+                norms.setNumberOfContacts(matrices[z].getNumberOfContacts());
+                buildNorms(chr, NormalizationCalculations.fromMatrix(matrices[z]), zooms.get(z), resolutionsToBuildTo, norms,
+                        numMatrixThreads);
+                matrices[z] = null;
+                results.add(norms);
+            }
+        }
+
+        @Override
+        public void commit() {
+            for (int z = 0; z < zooms.size(); z++) {
+                if (results.get(z) != null) {
+                    zooms.get(z).chromosomeNorms.add(results.get(z));
+                }
+            }
+            ChromosomeNorms finestNorms = results.get(zooms.size() - 1);
+            if (finestNorms != null) {
+                updateContactsPerBlock(finestNorms.getNumberOfContacts(), numBlocks);
+            }
+            results.clear();
+        }
+    }
+
+    /**
+     * @return initial guess for SCALE upsampled from a coarser resolution of the chromosome, or null if there is none
+     */
+    private ListOfFloatArrays getScaleWarmStart(Chromosome chr, HiCZoom zoom, NormalizationCalculations nc) {
+        Pair<HiCZoom, ListOfFloatArrays> previous = scaleWarmStarts.get(chr);
+        if (previous == null || previous.getFirst().getBinSize() <= zoom.getBinSize()
+                || zoom.getUnit() != HiCZoom.HiCUnit.BP) {
+            return null;
         }
+        return ZeroScale.createWarmStart(previous.getSecond(), previous.getFirst().getBinSize(),
+                zoom.getBinSize(), nc.getMatrixSize());
     }
 }
@@ -0,0 +1,74 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+/**
+ * Sums over the contacts normalized by one vector, gathered in a single pass: enough to scale the vector
+ * so the normalized matrix has the same total as the original, and to add it to the expected values.
+ */
+class NormalizedSums {
+
+    private final double[] distanceSums;
+    private final double matrixSum;
+
+    /**
+     * @param distanceSums normalized contacts summed by distance over the stored triangle, or null if
+     *                     no contact has valid norm values
+     * @param matrixSum    sum of the original contacts with valid norm values, over the whole (symmetric) matrix
+     */
+    NormalizedSums(double[] distanceSums, double matrixSum) {
+        this.distanceSums = distanceSums;
+        this.matrixSum = matrixSum;
+    }
+
+    /**
+     * @return the factor to multiply the vector by so the normalized matrix sums to the original
+     * (NaN if no contact has valid norm values), as NormalizationCalculations.getSumFactor
+     */
+    double getSumFactor() {
+        double normSum = 0;
+        if (distanceSums != null) {
+            // off-diagonal contacts are stored once but count twice in the whole matrix
+            normSum = distanceSums[0];
+            for (int dist = 1; dist < distanceSums.length; dist++) {
+                normSum += 2 * distanceSums[dist];
+            }
+        }
+        return Math.sqrt(normSum / matrixSum);
+    }
+
+    /**
+     * @return the distance sums for the vector multiplied by the factor, or null if there are none
+     */
+    double[] getScaledDistanceSums(double factor) {
+        if (distanceSums == null) return null;
+        double scale = 1 / (factor * factor);
+        double[] scaled = new double[distanceSums.length];
+        for (int dist = 0; dist < distanceSums.length; dist++) {
+            scaled[dist] = distanceSums[dist] * scale;
+        }
+        return scaled;
+    }
+}
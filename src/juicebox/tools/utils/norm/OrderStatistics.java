@@ -0,0 +1,64 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+/**
+ * Order statistics of a set of values, used for the percentile thresholds that filter rows before normalizing
+ */
+public interface OrderStatistics {
+
+    long getCount();
+
+    /**
+     * @param rank 0 for the smallest value, getCount() - 1 for the largest
+     */
+    double getValueAtRank(long rank);
+
+    /**
+     * Percentile as estimated by commons-math (Percentile with the default, legacy estimation):
+     * linear interpolation between the values at ranks around p * (n + 1) / 100
+     *
+     * @param p percentile, in (0, 100]
+     * @return the percentile, or NaN if there are no values
+     */
+    default double getPercentile(double p) {
+        long n = getCount();
+        if (n == 0) return Double.NaN;
+        if (n == 1) return getValueAtRank(0);
+        double pos = p / 100 * (n + 1);
+        double fpos = Math.floor(pos);
+        long intPos = (long) fpos;
+        double dif = pos - fpos;
+        if (pos < 1) {
+            return getValueAtRank(0);
+        }
+        if (pos >= n) {
+            return getValueAtRank(n - 1);
+        }
+        double lower = getValueAtRank(intPos - 1);
+        double upper = getValueAtRank(intPos);
+        return lower + dif * (upper - lower);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+import juicebox.HiCGlobals;
+
+/**
+ * Bounded-memory approximation of the order statistics of a stream of positive values,
+ * for vectors too long to copy into an array (e.g. genome-wide at high resolution).
+ * <p/>
+ * Values are counted in logarithmic buckets, and the value returned for a rank is the lower edge of its bucket:
+ * never larger than the value of that rank, and within twice the relative accuracy of it. Rows are filtered
+ * with strict tests (value < threshold), so rounding down never drops the rows of the requested rank, e.g.
+ * all rows with a row sum of exactly n when the threshold is n. Memory depends only on the range of the values,
+ * not on how many there are: about log(max / min) / (2 * accuracy) counters.
+ * <p/>
+ * Besides --quantile-sketch, the sketch is used whenever a copy of the values would not fit in the memory left
+ * (see {@link #shouldUse}), so thresholds on real-valued data can differ slightly with the heap size.
+ */
+public class QuantileSketch implements OrderStatistics {
+
+    private static final double DEFAULT_RELATIVE_ACCURACY = 0.001;
+    private static final long MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 10;
+
+    private final double gamma;
+    private final double logGamma;
+    private long[] counts = new long[0];
+    private int firstIndex = 0;
+    private long count = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public QuantileSketch() {
+        this(DEFAULT_RELATIVE_ACCURACY);
+    }
+
+    public QuantileSketch(double relativeAccuracy) {
+        gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        logGamma = Math.log(gamma);
+    }
+
+    /**
+     * @return true if the order statistics of this many values should be approximated rather than
+     * found exactly in a copy of the values (because the copy would not fit or the sketch was asked for)
+     */
+    public static boolean shouldUse(long numValues) {
+        if (HiCGlobals.USE_QUANTILE_SKETCH || numValues >= MAX_ARRAY_LENGTH) return true;
+        Runtime runtime = Runtime.getRuntime();
+        long bytesAvailable = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return 8 * numValues >= bytesAvailable;
+    }
+
+    public void add(double value) {
+        if (!(value > 0) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("Only finite positive values can be added: " + value);
+        }
+        int index = (int) Math.ceil(Math.log(value) / logGamma);
+        if (count == 0) {
+            counts = new long[64];
+            firstIndex = index - counts.length / 2;
+        } else if (index < firstIndex || index >= firstIndex + counts.length) {
+            grow(index);
+        }
+        counts[index - firstIndex]++;
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    private void grow(int index) {
+        int newFirstIndex = Math.min(firstIndex, index);
+        int newEnd = Math.max(firstIndex + counts.length, index + 1);
+        int newLength = Math.max(newEnd - newFirstIndex, 2 * counts.length);
+        // leave room on the side that grew
+        if (index < firstIndex) {
+            newFirstIndex = newEnd - newLength;
+        }
+        long[] newCounts = new long[newLength];
+        System.arraycopy(counts, 0, newCounts, firstIndex - newFirstIndex, counts.length);
+        counts = newCounts;
+        firstIndex = newFirstIndex;
+    }
+
+    @Override
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public double getValueAtRank(long rank) {
+        if (rank < 0 || rank >= count) {
+            throw new IllegalArgumentException("Rank " + rank + " out of range for " + count + " values");
+        }
+        if (rank == 0) return min;
+        if (rank == count - 1) return max;
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen > rank) {
+                // the bucket holds values in (gamma^(index - 1), gamma^index]
+                double value = Math.pow(gamma, i + firstIndex - 1);
+                return Math.max(min, Math.min(max, value));
+            }
+        }
+        return max;
+    }
+}
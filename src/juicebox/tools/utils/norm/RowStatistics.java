@@ -0,0 +1,99 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+import javastraw.reader.block.ContactRecord;
+import javastraw.reader.datastructures.ListOfDoubleArrays;
+import javastraw.reader.datastructures.ListOfFloatArrays;
+import javastraw.reader.datastructures.ListOfIntArrays;
+import javastraw.reader.iterators.IteratorContainer;
+
+import java.util.Iterator;
+
+/**
+ * Per-row statistics of a symmetric contact matrix, gathered in a single pass and shared
+ * by the VC, KR and SCALE calculations for that matrix.
+ */
+public class RowStatistics {
+
+    private final ListOfDoubleArrays rowSums;
+    private final ListOfIntArrays numNonZero;
+    private final ListOfFloatArrays diagonal;
+
+    RowStatistics(ListOfDoubleArrays rowSums, ListOfIntArrays numNonZero, ListOfFloatArrays diagonal) {
+        this.rowSums = rowSums;
+        this.numNonZero = numNonZero;
+        this.diagonal = diagonal;
+    }
+
+    public static RowStatistics create(IteratorContainer ic, SparseContactMatrix matrix) {
+        if (matrix != null) {
+            return matrix.getRowStatistics();
+        }
+
+        long matrixSize = ic.getMatrixSize();
+        ListOfDoubleArrays rowSums = new ListOfDoubleArrays(matrixSize, 0);
+        ListOfIntArrays numNonZero = new ListOfIntArrays(matrixSize, 0);
+        ListOfFloatArrays diagonal = new ListOfFloatArrays(matrixSize, 0);
+
+        Iterator<ContactRecord> iterator = ic.getNewContactRecordIterator();
+        while (iterator.hasNext()) {
+            ContactRecord cr = iterator.next();
+            int x = cr.getBinX();
+            int y = cr.getBinY();
+            float value = cr.getCounts();
+            rowSums.addTo(x, value);
+            numNonZero.addTo(x, 1);
+            if (x != y) {
+                rowSums.addTo(y, value);
+                numNonZero.addTo(y, 1);
+            } else {
+                diagonal.addTo(x, value);
+            }
+        }
+        return new RowStatistics(rowSums, numNonZero, diagonal);
+    }
+
+    /**
+     * @return sum of each row of the full (symmetric) matrix
+     */
+    public ListOfDoubleArrays getRowSums() {
+        return rowSums;
+    }
+
+    /**
+     * @return number of nonzero entries in each row of the full (symmetric) matrix
+     */
+    public ListOfIntArrays getNumNonZero() {
+        return numNonZero;
+    }
+
+    /**
+     * @return value on the diagonal for each row (0 if there is no contact)
+     */
+    public ListOfFloatArrays getDiagonal() {
+        return diagonal;
+    }
+}
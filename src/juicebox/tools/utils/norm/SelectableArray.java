@@ -0,0 +1,118 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+/**
+ * Exact order statistics of the first length entries of an array, found by in-place selection
+ * (quickselect with a three-way partition, so repeated values cost nothing extra) instead of sorting.
+ * The array is reordered; each selection leaves it partitioned around the selected rank,
+ * so later selections only search the side they fall on.
+ */
+public class SelectableArray implements OrderStatistics {
+
+    private final double[] values;
+    private final int length;
+    private int lastRank = -1;
+
+    public SelectableArray(double[] values, int length) {
+        this.values = values;
+        this.length = length;
+    }
+
+    @Override
+    public long getCount() {
+        return length;
+    }
+
+    @Override
+    public double getValueAtRank(long rank) {
+        if (rank < 0 || rank >= length) {
+            throw new IllegalArgumentException("Rank " + rank + " out of range for " + length + " values");
+        }
+        int r = (int) rank;
+        int from = 0;
+        int to = length;
+        if (lastRank >= 0) {
+            if (r > lastRank) {
+                from = lastRank + 1;
+            } else if (r < lastRank) {
+                to = lastRank;
+            } else {
+                return values[r];
+            }
+        }
+        double value = select(values, from, to, r);
+        lastRank = r;
+        return value;
+    }
+
+    /**
+     * Reorder values[from, to) so that values[rank] holds the value of that rank, with no larger value
+     * before it and no smaller value after it
+     */
+    public static double select(double[] values, int from, int to, int rank) {
+        int lo = from;
+        int hi = to - 1;
+        while (lo < hi) {
+            double pivot = medianOfThree(values[lo], values[lo + (hi - lo) / 2], values[hi]);
+            int lt = lo;
+            int gt = hi;
+            int i = lo;
+            while (i <= gt) {
+                if (values[i] < pivot) {
+                    swap(values, lt++, i++);
+                } else if (values[i] > pivot) {
+                    swap(values, i, gt--);
+                } else {
+                    i++;
+                }
+            }
+            // values[lo, lt) < pivot, values[lt, gt] == pivot, values(gt, hi] > pivot
+            if (rank < lt) {
+                hi = lt - 1;
+            } else if (rank > gt) {
+                lo = gt + 1;
+            } else {
+                return pivot;
+            }
+        }
+        return values[rank];
+    }
+
+    private static double medianOfThree(double a, double b, double c) {
+        if (a < b) {
+            if (b < c) return b;
+            return a < c ? c : a;
+        }
+        if (a < c) return a;
+        return b < c ? c : b;
+    }
+
+    private static void swap(double[] values, int i, int j) {
+        double temp = values[i];
+        values[i] = values[j];
+        values[j] = temp;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+import javastraw.reader.block.ContactRecord;
+import javastraw.reader.datastructures.ListOfDoubleArrays;
+import javastraw.reader.datastructures.ListOfFloatArrays;
+import javastraw.reader.datastructures.ListOfIntArrays;
+import javastraw.reader.iterators.IteratorContainer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Lets calculations on the same streamed matrix (e.g. KR and SCALE of a chromosome with --conserve-ram),
+ * each running on its own thread, share every pass over the contacts: a multiply waits until each
+ * participant still running has asked for one, and then a single pass over the contacts serves them all.
+ * <p/>
+ * Participants must call {@link #leave} when they are done (also when they fail), or the others wait forever.
+ */
+public class SharedContactPasses {
+
+    private final IteratorContainer ic;
+    private final long matrixSize;
+    private final List<Request> pending = new ArrayList<>();
+    private int numParticipants;
+    private int numPasses = 0;
+
+    public SharedContactPasses(IteratorContainer ic, int numParticipants) {
+        this.ic = ic;
+        this.matrixSize = ic.getMatrixSize();
+        this.numParticipants = numParticipants;
+    }
+
+    /**
+     * @return result of multiplying the (symmetric) matrix by the vector
+     */
+    public ListOfFloatArrays multiply(final ListOfFloatArrays vector) {
+        final ListOfDoubleArrays result = new ListOfDoubleArrays(matrixSize);
+        await(new Request() {
+            @Override
+            void add(int x, int y, float value) {
+                result.addTo(x, vector.get(y) * value);
+                if (x != y) {
+                    result.addTo(y, vector.get(x) * value);
+                }
+            }
+        });
+        return result.convertToFloats();
+    }
+
+    /**
+     * Multiply the submatrix of rows/columns with offset != -1 by a vector indexed by offset,
+     * as {@link SparseContactMatrix#sparseMultiply(ListOfIntArrays, ListOfDoubleArrays)}
+     */
+    public ListOfDoubleArrays multiply(final ListOfIntArrays offset, final ListOfDoubleArrays vector) {
+        final ListOfDoubleArrays result = new ListOfDoubleArrays(vector.getLength());
+        await(new Request() {
+            @Override
+            void add(int x, int y, float value) {
+                int row = offset.get(x);
+                int col = offset.get(y);
+                if (row != -1 && col != -1) {
+                    result.addTo(row, vector.get(col) * value);
+                    if (row != col) {
+                        result.addTo(col, vector.get(row) * value);
+                    }
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * {@link #multiply(ListOfIntArrays, ListOfDoubleArrays)} for a float vector; the result is still in double
+     */
+    public ListOfDoubleArrays multiply(final ListOfIntArrays offset, final ListOfFloatArrays vector) {
+        final ListOfDoubleArrays result = new ListOfDoubleArrays(vector.getLength());
+        await(new Request() {
+            @Override
+            void add(int x, int y, float value) {
+                int row = offset.get(x);
+                int col = offset.get(y);
+                if (row != -1 && col != -1) {
+                    result.addTo(row, (double) vector.get(col) * value);
+                    if (row != col) {
+                        result.addTo(col, (double) vector.get(row) * value);
+                    }
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Stop taking part; passes no longer wait for this participant
+     */
+    public void leave() {
+        List<Request> batch;
+        synchronized (this) {
+            numParticipants--;
+            batch = takeBatchIfComplete();
+        }
+        // the others may all have been waiting for this participant
+        run(batch);
+    }
+
+    /**
+     * @return number of passes made over the contacts so far
+     */
+    public synchronized int getNumberOfPasses() {
+        return numPasses;
+    }
+
+    private void await(Request request) {
+        List<Request> batch;
+        synchronized (this) {
+            pending.add(request);
+            batch = takeBatchIfComplete();
+        }
+        run(batch);
+        synchronized (this) {
+            while (!request.isDone) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for a shared pass", e);
+                }
+            }
+        }
+        if (request.failure != null) {
+            throw new RuntimeException("Shared pass over the contacts failed", request.failure);
+        }
+    }
+
+    /**
+     * @return the pending requests if every participant has made one (emptying the queue), otherwise null
+     */
+    private List<Request> takeBatchIfComplete() {
+        if (pending.isEmpty() || pending.size() < numParticipants) return null;
+        List<Request> batch = new ArrayList<>(pending);
+        pending.clear();
+        numPasses++;
+        return batch;
+    }
+
+    /**
+     * One pass over the contacts for all the requests of the batch; the participants that made them
+     * are all waiting, so nothing else touches their vectors
+     */
+    private void run(List<Request> batch) {
+        if (batch == null) return;
+        Throwable failure = null;
+        try {
+            Iterator<ContactRecord> iterator = ic.getNewContactRecordIterator();
+            while (iterator.hasNext()) {
+                ContactRecord cr = iterator.next();
+                int x = cr.getBinX();
+                int y = cr.getBinY();
+                float value = cr.getCounts();
+                for (Request request : batch) {
+                    request.add(x, y, value);
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        }
+        synchronized (this) {
+            for (Request request : batch) {
+                request.failure = failure;
+                request.isDone = true;
+            }
+            notifyAll();
+        }
+    }
+
+    private abstract static class Request {
+        private boolean isDone = false;
+        private Throwable failure = null;
+
+        abstract void add(int x, int y, float value);
+    }
+}
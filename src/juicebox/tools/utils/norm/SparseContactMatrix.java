@@ -0,0 +1,695 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+import javastraw.reader.datastructures.ListOfDoubleArrays;
+import javastraw.reader.datastructures.ListOfFloatArrays;
+import javastraw.reader.datastructures.ListOfIntArrays;
+import javastraw.reader.iterators.IteratorContainer;
+import javastraw.tools.ParallelizationTools;
+import juicebox.HiCGlobals;
+import juicebox.tools.utils.norm.final2.ScaleThreadObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compressed sparse row (CSR) copy of a symmetric contact matrix.
+ * <p/>
+ * Each contact record is stored once, in the row of its binX, exactly as it was read
+ * (i.e. only one triangle); all operations treat the matrix as symmetric.
+ * Passes over the matrix are split into partitions (ranges of rows) that are handed out
+ * to a fixed number of slots; each slot writes into its own accumulator and accumulators
+ * are summed in slot order. Subclasses decide where the contacts of a partition are kept.
+ * <p/>
+ * With deterministic reductions, the partitions are blocks of a fixed number of contacts and the number
+ * of slots is fixed too, so every sum is taken in the same order whatever the number of threads.
+ */
+public abstract class SparseContactMatrix {
+
+    static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 10;
+    // heap used by the norm calculations themselves: about a dozen double vectors for KR
+    static final long VECTOR_BYTES_PER_ROW = 128;
+    // with deterministic reductions, partitions are blocks of this many contacts, summed into at most this many slots
+    static final int DETERMINISTIC_CONTACTS_PER_BLOCK = 1 << 18;
+    static final int DETERMINISTIC_NUM_SLOTS = 16;
+
+    protected final int matrixSize;
+    protected final long[] rowPointers;
+    protected final int numThreads;
+    private float[][] floatAccumulators;
+    private double[][] doubleAccumulators;
+    private long[] contentHash;
+
+    protected SparseContactMatrix(int matrixSize, long[] rowPointers, int numThreads) {
+        this.matrixSize = matrixSize;
+        this.rowPointers = rowPointers;
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Convert the contacts of an iterator container into CSR format in memory
+     * (deflated, when conserving RAM with a compressed cache).
+     *
+     * @return the matrix, or null when conserving RAM without a compressed cache or if the matrix
+     * will not fit in memory (callers should then keep using the iterator container)
+     */
+    public static SparseContactMatrix create(IteratorContainer ic) {
+        return create(ic, IteratorContainer.numCPUMatrixThreads);
+    }
+
+    /**
+     * @param numThreads threads for the passes over the matrix (e.g. this job's share when several run at once)
+     */
+    public static SparseContactMatrix create(IteratorContainer ic, int numThreads) {
+        if (HiCGlobals.USE_ITERATOR_NOT_ALL_IN_RAM) {
+            return CompressedContactMatrix.load(ic, numThreads);
+        }
+        return InMemoryContactMatrix.load(ic, numThreads);
+    }
+
+    static long getAvailableMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    /**
+     * Cut the rows into blocks of about contactsPerBlock contacts, for matrices that are loaded a block at a time
+     *
+     * @return first row of each block, followed by matrixSize
+     */
+    static int[] createBlocks(long[] rowPointers, int matrixSize, int contactsPerBlock) {
+        List<Integer> startRows = new ArrayList<>();
+        startRows.add(0);
+        int startRow = 0;
+        for (int r = 1; r < matrixSize; r++) {
+            if (rowPointers[r + 1] - rowPointers[startRow] > contactsPerBlock) {
+                startRows.add(r);
+                startRow = r;
+            }
+        }
+        startRows.add(matrixSize);
+        int[] blockStartRows = new int[startRows.size()];
+        for (int b = 0; b < blockStartRows.length; b++) {
+            blockStartRows[b] = startRows.get(b);
+        }
+        return blockStartRows;
+    }
+
+    /**
+     * @return contactsPerBlock, or the fixed block size if reductions are deterministic
+     */
+    static int getContactsPerBlock(int contactsPerBlock) {
+        return HiCGlobals.DETERMINISTIC_REDUCTIONS ? DETERMINISTIC_CONTACTS_PER_BLOCK : contactsPerBlock;
+    }
+
+    /**
+     * @return number of slots (accumulators) for a matrix cut into numBlocks blocks, numWorkers of which are
+     * worked on at once: one per worker, or a number that only depends on the blocks if reductions are deterministic
+     */
+    static int getNumSlots(int numBlocks, int numWorkers) {
+        return HiCGlobals.DETERMINISTIC_REDUCTIONS ? Math.min(DETERMINISTIC_NUM_SLOTS, numBlocks) : numWorkers;
+    }
+
+    /**
+     * @param bufferBytesPerWorker memory needed to hold one block
+     * @return how many blocks can be worked on at once with the memory left, each with its buffers,
+     * and with the accumulators of all slots
+     */
+    static int getNumWorkers(long matrixSize, long bufferBytesPerWorker, int maxWorkers, int numBlocks) {
+        long bytesAvailable = getAvailableMemory() - (8 + VECTOR_BYTES_PER_ROW) * matrixSize;
+        if (HiCGlobals.DETERMINISTIC_REDUCTIONS) {
+            // the number of slots is fixed, so only the buffers grow with the workers
+            bytesAvailable -= 16 * matrixSize * getNumSlots(numBlocks, 0);
+            return (int) Math.min(maxWorkers, bytesAvailable / Math.max(1, bufferBytesPerWorker));
+        }
+        long bytesPerWorker = bufferBytesPerWorker + 16 * matrixSize;
+        return (int) Math.min(maxWorkers, bytesAvailable / bytesPerWorker);
+    }
+
+    /**
+     * @param numNorms number of vectors whose sums by distance are gathered in one pass (see {@link #getNormalizedSums})
+     * @return estimated memory of the workers of a matrix that is not loaded yet: the accumulators of their slots
+     * (float and double ones, and one per vector for the sums by distance), and the buffers for a block if the
+     * contacts are kept deflated (when conserving RAM) or spilled to a file (when they do not fit)
+     */
+    static long estimateWorkerBytes(long matrixSize, long numContacts, int numNorms, int numWorkers) {
+        long bufferBytes = HiCGlobals.USE_ITERATOR_NOT_ALL_IN_RAM
+                ? CompressedContactMatrix.getBufferBytesPerWorker(numContacts)
+                : MappedContactMatrix.getBufferBytesPerWorker(numContacts);
+        // with deterministic reductions the number of slots does not depend on the workers
+        long numSlots = HiCGlobals.DETERMINISTIC_REDUCTIONS ? DETERMINISTIC_NUM_SLOTS : numWorkers;
+        return numSlots * (16 + 8L * numNorms) * matrixSize + numWorkers * bufferBytes;
+    }
+
+    /**
+     * @return number of accumulators a pass needs (one per concurrently running partition)
+     */
+    protected abstract int getNumSlots();
+
+    /**
+     * Run the task on every partition of the matrix; all partitions given to a slot
+     * run one after the other, in the same order on every pass.
+     */
+    protected abstract void runOnPartitions(PartitionTask task);
+
+    public long getMatrixSize() {
+        return matrixSize;
+    }
+
+    public long getNumberOfContacts() {
+        return rowPointers[matrixSize];
+    }
+
+    /**
+     * Sum every factor x factor square of bins into one bin, e.g. to derive a coarser resolution
+     * whose bin size is a multiple of this one
+     *
+     * @return the coarser matrix, or null if this matrix cannot be aggregated in memory
+     */
+    public SparseContactMatrix aggregate(int factor) {
+        return null;
+    }
+
+    /**
+     * Give back what the matrix holds of shared budgets; the matrix must not be used afterwards
+     */
+    public void release() {
+    }
+
+    /**
+     * @return result of multiplying the (symmetric) matrix by the vector
+     */
+    public ListOfFloatArrays sparseMultiply(ListOfFloatArrays vector) {
+        ListOfFloatArrays result = new ListOfFloatArrays(matrixSize);
+        sparseMultiply(vector, result);
+        return result;
+    }
+
+    /**
+     * Multiply the (symmetric) matrix by the vector, overwriting the first matrixSize entries of result
+     * (either vector may be longer than the matrix)
+     */
+    public void sparseMultiply(ListOfFloatArrays vector, ListOfFloatArrays result) {
+        if (floatAccumulators == null) {
+            floatAccumulators = new float[getNumSlots()][matrixSize];
+        }
+        final float[] vVector = vector.getValues().get(0);
+        final boolean[] isCleared = new boolean[getNumSlots()];
+        runOnPartitions((slot, partition) -> {
+            if (!isCleared[slot]) {
+                Arrays.fill(floatAccumulators[slot], 0);
+                isCleared[slot] = true;
+            }
+            partition.execute(vVector, floatAccumulators[slot]);
+        });
+
+        final float[] sums = result.getValues().get(0);
+        runOnRowRanges(matrixSize, (start, end) -> {
+            Arrays.fill(sums, start, end, 0);
+            for (int s = 0; s < floatAccumulators.length; s++) {
+                if (!isCleared[s]) continue;
+                float[] accumulator = floatAccumulators[s];
+                for (int r = start; r < end; r++) {
+                    sums[r] += accumulator[r];
+                }
+            }
+        });
+    }
+
+    /**
+     * Multiply the submatrix of rows/columns with offset != -1 by a vector indexed by offset
+     *
+     * @param offset maps each row to its index in the vector, or -1 if the row has been removed
+     * @param vector vector of length equal to the number of remaining rows
+     */
+    public ListOfDoubleArrays sparseMultiply(ListOfIntArrays offset, ListOfDoubleArrays vector) {
+        final int n = (int) vector.getLength();
+        ListOfDoubleArrays result = new ListOfDoubleArrays(n);
+        if (n == 0) return result;
+
+        final int[] rowOffset = offset.getValues().get(0);
+        final double[] vVector = vector.getValues().get(0);
+        final double[][] accumulators = getDoubleAccumulators();
+        final boolean[] isCleared = new boolean[accumulators.length];
+        runOnPartitions((slot, partition) -> {
+            double[] accumulator = accumulators[slot];
+            if (!isCleared[slot]) {
+                Arrays.fill(accumulator, 0, n, 0);
+                isCleared[slot] = true;
+            }
+            int[] columns = partition.getColumns();
+            float[] values = partition.getValues();
+            for (int i = partition.getStartRow(); i < partition.getEndRow(); i++) {
+                int row = rowOffset[i];
+                if (row == -1) continue;
+                double sum = 0;
+                double vRow = vVector[row];
+                int end = partition.getRowEnd(i);
+                for (int q = partition.getRowStart(i); q < end; q++) {
+                    int col = rowOffset[columns[q]];
+                    if (col != -1) {
+                        sum += vVector[col] * values[q];
+                        if (row != col) {
+                            accumulator[col] += vRow * values[q];
+                        }
+                    }
+                }
+                accumulator[row] += sum;
+            }
+        });
+
+        final double[] sums = result.getValues().get(0);
+        runOnRowRanges(n, (start, end) -> addAccumulators(accumulators, isCleared, sums, start, end));
+        return result;
+    }
+
+    /**
+     * {@link #sparseMultiply(ListOfIntArrays, ListOfDoubleArrays)} for a float vector; the result is still in double
+     */
+    public ListOfDoubleArrays sparseMultiply(ListOfIntArrays offset, ListOfFloatArrays vector) {
+        final int n = (int) vector.getLength();
+        ListOfDoubleArrays result = new ListOfDoubleArrays(n);
+        if (n == 0) return result;
+
+        final int[] rowOffset = offset.getValues().get(0);
+        final float[] vVector = vector.getValues().get(0);
+        final double[][] accumulators = getDoubleAccumulators();
+        final boolean[] isCleared = new boolean[accumulators.length];
+        runOnPartitions((slot, partition) -> {
+            double[] accumulator = accumulators[slot];
+            if (!isCleared[slot]) {
+                Arrays.fill(accumulator, 0, n, 0);
+                isCleared[slot] = true;
+            }
+            int[] columns = partition.getColumns();
+            float[] values = partition.getValues();
+            for (int i = partition.getStartRow(); i < partition.getEndRow(); i++) {
+                int row = rowOffset[i];
+                if (row == -1) continue;
+                double sum = 0;
+                double vRow = vVector[row];
+                int end = partition.getRowEnd(i);
+                for (int q = partition.getRowStart(i); q < end; q++) {
+                    int col = rowOffset[columns[q]];
+                    if (col != -1) {
+                        sum += (double) vVector[col] * values[q];
+                        if (row != col) {
+                            accumulator[col] += vRow * values[q];
+                        }
+                    }
+                }
+                accumulator[row] += sum;
+            }
+        });
+
+        final double[] sums = result.getValues().get(0);
+        runOnRowRanges(n, (start, end) -> addAccumulators(accumulators, isCleared, sums, start, end));
+        return result;
+    }
+
+    /**
+     * @return row sums, nonzero counts and diagonal of the full (symmetric) matrix
+     */
+    public RowStatistics getRowStatistics() {
+        ListOfFloatArrays diagonal = new ListOfFloatArrays(matrixSize, 0);
+        final float[] diagonalValues = diagonal.getValues().get(0);
+        final int[][] countAccumulators = new int[getNumSlots()][matrixSize];
+        final double[][] accumulators = getDoubleAccumulators();
+        final boolean[] isCleared = new boolean[accumulators.length];
+        runOnPartitions((slot, partition) -> {
+            double[] accumulator = accumulators[slot];
+            int[] counts = countAccumulators[slot];
+            if (!isCleared[slot]) {
+                Arrays.fill(accumulator, 0);
+                isCleared[slot] = true;
+            }
+            int[] columns = partition.getColumns();
+            float[] values = partition.getValues();
+            for (int i = partition.getStartRow(); i < partition.getEndRow(); i++) {
+                int start = partition.getRowStart(i);
+                int end = partition.getRowEnd(i);
+                counts[i] += end - start;
+                for (int q = start; q < end; q++) {
+                    accumulator[i] += values[q];
+                    if (i != columns[q]) {
+                        accumulator[columns[q]] += values[q];
+                        counts[columns[q]]++;
+                    } else {
+                        // partitions never share a row
+                        diagonalValues[i] += values[q];
+                    }
+                }
+            }
+        });
+
+        ListOfDoubleArrays rowSums = new ListOfDoubleArrays(matrixSize);
+        ListOfIntArrays numNonZero = new ListOfIntArrays(matrixSize, 0);
+        final double[] sums = rowSums.getValues().get(0);
+        final int[] totalCounts = numNonZero.getValues().get(0);
+        runOnRowRanges(matrixSize, (start, end) -> {
+            addAccumulators(accumulators, isCleared, sums, start, end);
+            for (int[] counts : countAccumulators) {
+                for (int r = start; r < end; r++) {
+                    totalCounts[r] += counts[r];
+                }
+            }
+        });
+        return new RowStatistics(rowSums, numNonZero, diagonal);
+    }
+
+    /**
+     * @return {sum of normalized matrix, sum of original matrix}, over entries with valid norm values
+     */
+    public double[] getNormMatrixSums(ListOfFloatArrays norm) {
+        final float[] normValues = norm.getValues().get(0);
+        final double[][] partialSums = new double[getNumSlots()][2];
+        runOnPartitions((slot, partition) -> {
+            double normSum = 0;
+            double matrixSum = 0;
+            int[] columns = partition.getColumns();
+            float[] values = partition.getValues();
+            for (int i = partition.getStartRow(); i < partition.getEndRow(); i++) {
+                double valX = normValues[i];
+                if (!NormVectorUpdater.isValidNormValue(normValues[i])) continue;
+                int end = partition.getRowEnd(i);
+                for (int q = partition.getRowStart(i); q < end; q++) {
+                    double valY = normValues[columns[q]];
+                    if (NormVectorUpdater.isValidNormValue(normValues[columns[q]])) {
+                        // want total sum of matrix, not just upper triangle
+                        double factor = i == columns[q] ? 1 : 2;
+                        normSum += factor * values[q] / (valX * valY);
+                        matrixSum += factor * values[q];
+                    }
+                }
+            }
+            partialSums[slot][0] += normSum;
+            partialSums[slot][1] += matrixSum;
+        });
+
+        double[] sums = new double[2];
+        for (double[] partialSum : partialSums) {
+            sums[0] += partialSum[0];
+            sums[1] += partialSum[1];
+        }
+        return sums;
+    }
+
+    /**
+     * @return sum of the normalized contacts at each distance from the diagonal
+     * (over the stored triangle, as expected values are calculated), or null if no contact has valid norm values
+     */
+    public double[] getNormalizedDistanceSums(ListOfFloatArrays norm) {
+        final float[] normValues = norm.getValues().get(0);
+        final double[][] accumulators = getDoubleAccumulators();
+        final boolean[] isCleared = new boolean[accumulators.length];
+        final boolean[] hasData = new boolean[accumulators.length];
+        runOnPartitions((slot, partition) -> {
+            double[] accumulator = accumulators[slot];
+            if (!isCleared[slot]) {
+                Arrays.fill(accumulator, 0);
+                isCleared[slot] = true;
+            }
+            int[] columns = partition.getColumns();
+            float[] values = partition.getValues();
+            for (int i = partition.getStartRow(); i < partition.getEndRow(); i++) {
+                float valX = normValues[i];
+                if (!NormVectorUpdater.isValidNormValue(valX)) continue;
+                int end = partition.getRowEnd(i);
+                for (int q = partition.getRowStart(i); q < end; q++) {
+                    int j = columns[q];
+                    float valY = normValues[j];
+                    if (NormVectorUpdater.isValidNormValue(valY)) {
+                        accumulator[Math.abs(i - j)] += values[q] / (valX * valY);
+                        hasData[slot] = true;
+                    }
+                }
+            }
+        });
+
+        boolean anyData = false;
+        for (boolean slotHasData : hasData) {
+            anyData |= slotHasData;
+        }
+        if (!anyData) return null;
+
+        final double[] sums = new double[matrixSize];
+        runOnRowRanges(matrixSize, (start, end) -> addAccumulators(accumulators, isCleared, sums, start, end));
+        return sums;
+    }
+
+    /**
+     * Gather the sums for scaling each of the vectors and adding it to the expected values, in one pass
+     * over the contacts for all of them
+     *
+     * @return the sums, in the order of the vectors
+     */
+    NormalizedSums[] getNormalizedSums(List<ListOfFloatArrays> norms) {
+        final int numNorms = norms.size();
+        final float[][] normValues = new float[numNorms][];
+        for (int n = 0; n < numNorms; n++) {
+            normValues[n] = norms.get(n).getValues().get(0);
+        }
+        // one accumulator per slot and vector, only allocated for slots that run
+        final double[][][] accumulators = new double[getNumSlots()][][];
+        final double[][] matrixSums = new double[getNumSlots()][numNorms];
+        final boolean[][] hasData = new boolean[getNumSlots()][numNorms];
+        runOnPartitions((slot, partition) -> {
+            if (accumulators[slot] == null) {
+                accumulators[slot] = new double[numNorms][matrixSize];
+            }
+            double[][] accumulator = accumulators[slot];
+            double[] matrixSum = matrixSums[slot];
+            float[] rowValues = new float[numNorms];
+            int[] columns = partition.getColumns();
+            float[] values = partition.getValues();
+            for (int i = partition.getStartRow(); i < partition.getEndRow(); i++) {
+                boolean anyValid = false;
+                for (int n = 0; n < numNorms; n++) {
+                    rowValues[n] = normValues[n][i];
+                    anyValid |= NormVectorUpdater.isValidNormValue(rowValues[n]);
+                }
+                if (!anyValid) continue;
+                int end = partition.getRowEnd(i);
+                for (int q = partition.getRowStart(i); q < end; q++) {
+                    int j = columns[q];
+                    int dist = Math.abs(i - j);
+                    // want total sum of matrix, not just upper triangle
+                    float count = i == j ? values[q] : 2 * values[q];
+                    for (int n = 0; n < numNorms; n++) {
+                        float valX = rowValues[n];
+                        float valY = normValues[n][j];
+                        if (NormVectorUpdater.isValidNormValue(valX) && NormVectorUpdater.isValidNormValue(valY)) {
+                            accumulator[n][dist] += values[q] / (valX * valY);
+                            matrixSum[n] += count;
+                            hasData[slot][n] = true;
+                        }
+                    }
+                }
+            }
+        });
+
+        NormalizedSums[] sums = new NormalizedSums[numNorms];
+        boolean[] isUsed = new boolean[accumulators.length];
+        for (int n = 0; n < numNorms; n++) {
+            boolean anyData = false;
+            double matrixSum = 0;
+            final double[][] normAccumulators = new double[accumulators.length][];
+            for (int s = 0; s < accumulators.length; s++) {
+                anyData |= hasData[s][n];
+                matrixSum += matrixSums[s][n];
+                isUsed[s] = accumulators[s] != null;
+                normAccumulators[s] = isUsed[s] ? accumulators[s][n] : null;
+            }
+            double[] distanceSums = null;
+            if (anyData) {
+                final double[] normSums = new double[matrixSize];
+                runOnRowRanges(matrixSize, (start, end) -> addAccumulators(normAccumulators, isUsed, normSums, start, end));
+                distanceSums = normSums;
+            }
+            sums[n] = new NormalizedSums(distanceSums, matrixSum);
+        }
+        return sums;
+    }
+
+    /**
+     * @return connected components of the contact graph; each slot joins the rows of its partitions,
+     * and the slots are then merged in order
+     */
+    DisjointSets getComponents() {
+        final DisjointSets[] slotComponents = new DisjointSets[getNumSlots()];
+        runOnPartitions((slot, partition) -> {
+            if (slotComponents[slot] == null) {
+                slotComponents[slot] = new DisjointSets(matrixSize);
+            }
+            DisjointSets components = slotComponents[slot];
+            int[] columns = partition.getColumns();
+            for (int i = partition.getStartRow(); i < partition.getEndRow(); i++) {
+                int end = partition.getRowEnd(i);
+                for (int q = partition.getRowStart(i); q < end; q++) {
+                    components.union(i, columns[q]);
+                }
+            }
+        });
+
+        DisjointSets components = new DisjointSets(matrixSize);
+        for (DisjointSets slotComponent : slotComponents) {
+            if (slotComponent != null) {
+                components.unionAll(slotComponent);
+            }
+        }
+        return components;
+    }
+
+    /**
+     * @return 128-bit hash of the contacts (with the matrix size and number of contacts), which does not
+     * depend on the order they were read in or on how the matrix is partitioned or stored
+     */
+    public synchronized long[] getContentHash() {
+        if (contentHash != null) return contentHash;
+        final long[][] slotHashes = new long[getNumSlots()][2];
+        runOnPartitions((slot, partition) -> {
+            long h1 = 0, h2 = 0;
+            int[] columns = partition.getColumns();
+            float[] values = partition.getValues();
+            for (int i = partition.getStartRow(); i < partition.getEndRow(); i++) {
+                int end = partition.getRowEnd(i);
+                for (int q = partition.getRowStart(i); q < end; q++) {
+                    long key = mix(((long) i << 32) | (columns[q] & 0xFFFFFFFFL));
+                    long value = Float.floatToIntBits(values[q]);
+                    h1 += mix(key ^ value);
+                    h2 += mix(key + value * 0xC2B2AE3D27D4EB4FL + 1);
+                }
+            }
+            slotHashes[slot][0] += h1;
+            slotHashes[slot][1] += h2;
+        });
+
+        long[] hash = new long[]{matrixSize, getNumberOfContacts(), 0, 0};
+        for (long[] slotHash : slotHashes) {
+            hash[2] += slotHash[0];
+            hash[3] += slotHash[1];
+        }
+        contentHash = hash;
+        return hash;
+    }
+
+    /**
+     * splitmix64 finalizer
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static void addAccumulators(double[][] accumulators, boolean[] isUsed, double[] sums, int start, int end) {
+        for (int s = 0; s < accumulators.length; s++) {
+            if (!isUsed[s]) continue;
+            double[] accumulator = accumulators[s];
+            for (int r = start; r < end; r++) {
+                sums[r] += accumulator[r];
+            }
+        }
+    }
+
+    private double[][] getDoubleAccumulators() {
+        if (doubleAccumulators == null) {
+            doubleAccumulators = new double[getNumSlots()][matrixSize];
+        }
+        return doubleAccumulators;
+    }
+
+    /**
+     * Deal the blocks out to the slots in turn, and run the blocks of each slot in order, so results
+     * do not depend on timing. Worker w runs slots w, w + numWorkers, ...; no two tasks run at once
+     * with the same worker, which can thus index buffers.
+     */
+    protected void runOnBlocks(int numBlocks, int numWorkers, BlockTask task) {
+        final int numSlots = getNumSlots();
+        final int numRunning = Math.min(numWorkers, numSlots);
+        runOnWorkers(numRunning, w -> {
+            for (int s = w; s < numSlots; s += numRunning) {
+                for (int b = s; b < numBlocks; b += numSlots) {
+                    task.run(s, b, w);
+                }
+            }
+        });
+    }
+
+    /**
+     * Run the task once for each worker, in parallel when there is more than one worker
+     */
+    private void runOnWorkers(int numWorkers, WorkerTask task) {
+        if (numWorkers == 1) {
+            task.run(0);
+            return;
+        }
+        final AtomicInteger index = new AtomicInteger(0);
+        ParallelizationTools.launchParallelizedCode(Math.min(numThreads, numWorkers), () -> {
+            int w = index.getAndIncrement();
+            while (w < numWorkers) {
+                task.run(w);
+                w = index.getAndIncrement();
+            }
+        });
+    }
+
+    private void runOnRowRanges(int length, RowRangeTask task) {
+        if (getNumSlots() == 1) {
+            task.run(0, length);
+            return;
+        }
+        final int rowsPerThread = length / numThreads + 1;
+        final AtomicInteger index = new AtomicInteger(0);
+        ParallelizationTools.launchParallelizedCode(numThreads, () -> {
+            int t = index.getAndIncrement();
+            while (t < numThreads) {
+                int start = Math.min(t * rowsPerThread, length);
+                int end = Math.min(start + rowsPerThread, length);
+                task.run(start, end);
+                t = index.getAndIncrement();
+            }
+        });
+    }
+
+    protected interface PartitionTask {
+        void run(int slot, ScaleThreadObject partition);
+    }
+
+    protected interface BlockTask {
+        void run(int slot, int block, int worker);
+    }
+
+    private interface WorkerTask {
+        void run(int worker);
+    }
+
+    private interface RowRangeTask {
+        void run(int start, int end);
+    }
+}
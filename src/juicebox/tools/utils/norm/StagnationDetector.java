@@ -0,0 +1,74 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+/**
+ * Tells when an iterative normalization stops making progress: the smallest error seen so far
+ * has not dropped by a given fraction within a window of iterations.
+ */
+public class StagnationDetector {
+
+    private final int window;
+    private final double minImprovement;
+    private double best = Double.MAX_VALUE;
+    private double bestAtWindowStart = Double.MAX_VALUE;
+    private int iterationsInWindow = 0;
+
+    /**
+     * @param window         number of iterations the error has to improve within
+     * @param minImprovement fraction by which the smallest error has to drop within the window
+     */
+    public StagnationDetector(int window, double minImprovement) {
+        this.window = window;
+        this.minImprovement = minImprovement;
+    }
+
+    /**
+     * Record the error of an iteration
+     *
+     * @return true if the smallest error did not improve enough over the last window of iterations
+     */
+    public boolean isStagnant(double error) {
+        if (error < best) {
+            best = error;
+        }
+        if (best < bestAtWindowStart * (1 - minImprovement)) {
+            bestAtWindowStart = best;
+            iterationsInWindow = 0;
+            return false;
+        }
+        iterationsInWindow++;
+        return iterationsInWindow >= window;
+    }
+
+    /**
+     * Forget the errors seen so far, e.g. when the iterations start over on a different problem
+     */
+    public void reset() {
+        best = Double.MAX_VALUE;
+        bestAtWindowStart = Double.MAX_VALUE;
+        iterationsInWindow = 0;
+    }
+}
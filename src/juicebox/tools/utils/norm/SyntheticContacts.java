@@ -0,0 +1,145 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Intra-chromosomal contacts generated in memory, for the benchmarks and the regression checks in UnitTests.
+ * <p/>
+ * Like Hi-C data, the number of contacts falls off with the distance from the diagonal as a power law
+ * ((d + 1) ^ -decayExponent), counts are higher near the diagonal, and some rows are empty
+ * (as for unmappable regions). Only the upper triangle is stored, as in a .hic file.
+ */
+public class SyntheticContacts {
+
+    final int numBins;
+    // CSR by binX
+    final long[] rowPointers;
+    final int[] binY;
+    final float[] counts;
+
+    /**
+     * @param contactsPerRow   average number of contacts drawn for each non-empty row (before merging duplicates)
+     * @param emptyRowFraction fraction of rows without any contacts
+     * @param seed             the same seed always gives the same contacts
+     */
+    public SyntheticContacts(int numBins, int contactsPerRow, double decayExponent, double emptyRowFraction, long seed) {
+        this.numBins = numBins;
+        Random random = new Random(seed);
+        boolean[] isEmpty = new boolean[numBins];
+        for (int i = 0; i < numBins; i++) {
+            isEmpty[i] = random.nextDouble() < emptyRowFraction;
+        }
+
+        rowPointers = new long[numBins + 1];
+        int[] allColumns = new int[16];
+        float[] allCounts = new float[16];
+        int numContacts = 0;
+        int[] rowColumns = new int[contactsPerRow];
+        for (int i = 0; i < numBins; i++) {
+            if (!isEmpty[i]) {
+                for (int c = 0; c < contactsPerRow; c++) {
+                    rowColumns[c] = i + drawDistance(random, numBins - i, decayExponent);
+                }
+                Arrays.sort(rowColumns);
+                for (int c = 0; c < contactsPerRow; c++) {
+                    int j = rowColumns[c];
+                    if (isEmpty[j]) continue;
+                    float count = drawCount(random, j - i);
+                    if (numContacts > rowPointers[i] && allColumns[numContacts - 1] == j) {
+                        allCounts[numContacts - 1] += count;
+                        continue;
+                    }
+                    if (numContacts == allColumns.length) {
+                        allColumns = Arrays.copyOf(allColumns, 2 * numContacts);
+                        allCounts = Arrays.copyOf(allCounts, 2 * numContacts);
+                    }
+                    allColumns[numContacts] = j;
+                    allCounts[numContacts++] = count;
+                }
+            }
+            rowPointers[i + 1] = numContacts;
+        }
+        binY = Arrays.copyOf(allColumns, numContacts);
+        counts = Arrays.copyOf(allCounts, numContacts);
+    }
+
+    /**
+     * @return a new matrix over the contacts, split for the number of threads
+     */
+    public SparseContactMatrix createMatrix(int numThreads) {
+        return InMemoryContactMatrix.fromCSR(numBins, rowPointers, binY, counts, numThreads);
+    }
+
+    /**
+     * @return a new matrix over the contacts followed by numTailBins bins that are only linked to their
+     * neighbours; SCALE cannot balance such a path, so it has to restart without those rows
+     */
+    public SparseContactMatrix createMatrixWithPathTail(int numTailBins, int numThreads) {
+        int numAllBins = numBins + numTailBins;
+        long[] allRowPointers = Arrays.copyOf(rowPointers, numAllBins + 1);
+        int[] allBinY = Arrays.copyOf(binY, binY.length + numTailBins - 1);
+        float[] allCounts = Arrays.copyOf(counts, counts.length + numTailBins - 1);
+        int next = counts.length;
+        for (int i = numBins; i < numAllBins; i++) {
+            if (i + 1 < numAllBins) {
+                allBinY[next] = i + 1;
+                allCounts[next++] = 1 + i % 3;
+            }
+            allRowPointers[i + 1] = next;
+        }
+        return InMemoryContactMatrix.fromCSR(numAllBins, allRowPointers, allBinY, allCounts, numThreads);
+    }
+
+    long getNumberOfContacts() {
+        return counts.length;
+    }
+
+    /**
+     * @param numDistances distances 0 to numDistances - 1 are possible
+     * @return distance from the diagonal, with probability proportional to (d + 1) ^ -exponent
+     */
+    private static int drawDistance(Random random, int numDistances, double exponent) {
+        double u = random.nextDouble();
+        double x;
+        if (Math.abs(exponent - 1) < 1e-9) {
+            x = Math.pow(numDistances + 1, u);
+        } else {
+            double a = 1 - exponent;
+            x = Math.pow(1 + u * (Math.pow(numDistances + 1, a) - 1), 1 / a);
+        }
+        return (int) Math.min(numDistances - 1, Math.max(0, Math.floor(x) - 1));
+    }
+
+    /**
+     * @return at least one read, with more close to the diagonal
+     */
+    private static float drawCount(Random random, int distance) {
+        double mean = 20.0 / (distance + 1);
+        return 1 + (float) Math.floor(-Math.log(1 - random.nextDouble()) * mean);
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm;
+
+import javastraw.reader.datastructures.ListOfDoubleArrays;
+import javastraw.reader.datastructures.ListOfFloatArrays;
+import javastraw.reader.datastructures.ListOfIntArrays;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Element-wise operations on the first length entries of chunked vectors, run over the chunks
+ * as plain array loops the JIT can unroll and vectorize, instead of through get and set.
+ * <p/>
+ * The vectors may be longer than length (e.g. workspace vectors); chunks of all of them start
+ * at the same indices. Float results are calculated in float, as with get and set.
+ */
+public class VectorMath {
+
+    /**
+     * @return number of entries of the chunk, starting at start, that are within length
+     */
+    private static int getChunkLength(int arrayLength, long start, long length) {
+        return (int) Math.min(arrayLength, length - start);
+    }
+
+    public static void copy(ListOfFloatArrays source, ListOfFloatArrays destination, long length) {
+        List<float[]> from = source.getValues();
+        List<float[]> to = destination.getValues();
+        long start = 0;
+        for (int c = 0; c < from.size() && start < length; c++) {
+            int n = getChunkLength(from.get(c).length, start, length);
+            System.arraycopy(from.get(c), 0, to.get(c), 0, n);
+            start += n;
+        }
+    }
+
+    public static void fill(ListOfFloatArrays vector, long length, float value) {
+        long start = 0;
+        for (float[] array : vector.getValues()) {
+            if (start >= length) break;
+            int n = getChunkLength(array.length, start, length);
+            Arrays.fill(array, 0, n, value);
+            start += n;
+        }
+    }
+
+    public static void fill(ListOfIntArrays vector, long length, int value) {
+        long start = 0;
+        for (int[] array : vector.getValues()) {
+            if (start >= length) break;
+            int n = getChunkLength(array.length, start, length);
+            Arrays.fill(array, 0, n, value);
+            start += n;
+        }
+    }
+
+    /**
+     * vector *= factors
+     */
+    public static void multiply(ListOfFloatArrays vector, ListOfFloatArrays factors, long length) {
+        List<float[]> a = vector.getValues();
+        List<float[]> b = factors.getValues();
+        long start = 0;
+        for (int c = 0; c < a.size() && start < length; c++) {
+            float[] x = a.get(c);
+            float[] y = b.get(c);
+            int n = getChunkLength(x.length, start, length);
+            for (int i = 0; i < n; i++) {
+                x[i] *= y[i];
+            }
+            start += n;
+        }
+    }
+
+    /**
+     * result = numerators / denominators
+     */
+    public static void divide(ListOfFloatArrays numerators, ListOfFloatArrays denominators, ListOfFloatArrays result,
+                              long length) {
+        List<float[]> a = numerators.getValues();
+        List<float[]> b = denominators.getValues();
+        List<float[]> r = result.getValues();
+        long start = 0;
+        for (int c = 0; c < a.size() && start < length; c++) {
+            float[] x = a.get(c);
+            float[] y = b.get(c);
+            float[] z = r.get(c);
+            int n = getChunkLength(x.length, start, length);
+            for (int i = 0; i < n; i++) {
+                z[i] = x[i] / y[i];
+            }
+            start += n;
+        }
+    }
+
+    /**
+     * Set the entries where the mask is nonzero to value
+     */
+    public static void assignWhere(ListOfFloatArrays vector, ListOfIntArrays mask, float value, long length) {
+        List<float[]> a = vector.getValues();
+        List<int[]> m = mask.getValues();
+        long start = 0;
+        for (int c = 0; c < a.size() && start < length; c++) {
+            float[] x = a.get(c);
+            int[] y = m.get(c);
+            int n = getChunkLength(x.length, start, length);
+            for (int i = 0; i < n; i++) {
+                if (y[i] != 0) x[i] = value;
+            }
+            start += n;
+        }
+    }
+
+    /**
+     * @return the dot product, summed in double
+     */
+    public static double dot(ListOfFloatArrays a, ListOfFloatArrays b, long length) {
+        List<float[]> u = a.getValues();
+        List<float[]> v = b.getValues();
+        double sum = 0;
+        long start = 0;
+        for (int c = 0; c < u.size() && start < length; c++) {
+            float[] x = u.get(c);
+            float[] y = v.get(c);
+            int n = getChunkLength(x.length, start, length);
+            for (int i = 0; i < n; i++) {
+                sum += (double) x[i] * y[i];
+            }
+            start += n;
+        }
+        return sum;
+    }
+
+    /**
+     * @return the largest absolute difference over the entries where excluded is zero, or 0 if there are none
+     */
+    public static double maxAbsDifference(ListOfFloatArrays a, ListOfFloatArrays b, ListOfIntArrays excluded,
+                                          long length) {
+        List<float[]> u = a.getValues();
+        List<float[]> v = b.getValues();
+        List<int[]> m = excluded.getValues();
+        float max = 0;
+        long start = 0;
+        for (int c = 0; c < u.size() && start < length; c++) {
+            float[] x = u.get(c);
+            float[] y = v.get(c);
+            int[] z = m.get(c);
+            int n = getChunkLength(x.length, start, length);
+            for (int i = 0; i < n; i++) {
+                if (z[i] != 0) continue;
+                float difference = Math.abs(x[i] - y[i]);
+                if (difference > max) max = difference;
+            }
+            start += n;
+        }
+        return max;
+    }
+
+    /**
+     * vector *= factors
+     */
+    public static void multiply(ListOfDoubleArrays vector, ListOfDoubleArrays factors, long length) {
+        List<double[]> a = vector.getValues();
+        List<double[]> b = factors.getValues();
+        long start = 0;
+        for (int c = 0; c < a.size() && start < length; c++) {
+            double[] x = a.get(c);
+            double[] y = b.get(c);
+            int n = getChunkLength(x.length, start, length);
+            for (int i = 0; i < n; i++) {
+                x[i] *= y[i];
+            }
+            start += n;
+        }
+    }
+
+    /**
+     * result = a * b
+     */
+    public static void multiply(ListOfDoubleArrays a, ListOfDoubleArrays b, ListOfDoubleArrays result, long length) {
+        List<double[]> u = a.getValues();
+        List<double[]> v = b.getValues();
+        List<double[]> r = result.getValues();
+        long start = 0;
+        for (int c = 0; c < u.size() && start < length; c++) {
+            double[] x = u.get(c);
+            double[] y = v.get(c);
+            double[] z = r.get(c);
+            int n = getChunkLength(x.length, start, length);
+            for (int i = 0; i < n; i++) {
+                z[i] = x[i] * y[i];
+            }
+            start += n;
+        }
+    }
+
+    /**
+     * vector = factor * vector + addend
+     */
+    public static void scaleAndAdd(ListOfDoubleArrays vector, double factor, ListOfDoubleArrays addend, long length) {
+        List<double[]> a = vector.getValues();
+        List<double[]> b = addend.getValues();
+        long start = 0;
+        for (int c = 0; c < a.size() && start < length; c++) {
+            double[] x = a.get(c);
+            double[] y = b.get(c);
+            int n = getChunkLength(x.length, start, length);
+            for (int i = 0; i < n; i++) {
+                x[i] = factor * x[i] + y[i];
+            }
+            start += n;
+        }
+    }
+
+    /**
+     * vector += factor * addend
+     */
+    public static void addScaled(ListOfDoubleArrays vector, double factor, ListOfDoubleArrays addend, long length) {
+        List<double[]> a = vector.getValues();
+        List<double[]> b = addend.getValues();
+        long start = 0;
+        for (int c = 0; c < a.size() && start < length; c++) {
+            double[] x = a.get(c);
+            double[] y = b.get(c);
+            int n = getChunkLength(x.length, start, length);
+            for (int i = 0; i < n; i++) {
+                x[i] += factor * y[i];
+            }
+            start += n;
+        }
+    }
+
+    public static double dot(ListOfDoubleArrays a, ListOfDoubleArrays b, long length) {
+        List<double[]> u = a.getValues();
+        List<double[]> v = b.getValues();
+        double sum = 0;
+        long start = 0;
+        for (int c = 0; c < u.size() && start < length; c++) {
+            double[] x = u.get(c);
+            double[] y = v.get(c);
+            int n = getChunkLength(x.length, start, length);
+            for (int i = 0; i < n; i++) {
+                sum += x[i] * y[i];
+            }
+            start += n;
+        }
+        return sum;
+    }
+}
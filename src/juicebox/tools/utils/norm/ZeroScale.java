@@ -34,7 +34,27 @@ import java.util.Iterator;
 
 public class ZeroScale {
     public static ListOfFloatArrays scale(IteratorContainer ic, ListOfFloatArrays targetVectorInitial, String key) {
-        ListOfFloatArrays newVector = FinalScale.scaleToTargetVector(ic, targetVectorInitial);
+        SparseContactMatrix matrix = SparseContactMatrix.create(ic);
+        try {
+            return scale(ic, matrix, null, targetVectorInitial, null, key);
+        } finally {
+            if (matrix != null) matrix.release();
+        }
+    }
+
+    public static ListOfFloatArrays scale(IteratorContainer ic, SparseContactMatrix matrix, RowStatistics rowStatistics,
+                                          ListOfFloatArrays targetVectorInitial, ListOfFloatArrays initialGuess, String key) {
+        return scale(ic, matrix, null, rowStatistics, targetVectorInitial, initialGuess, key);
+    }
+
+    /**
+     * @param sharedPasses passes over ic shared with other calculations, or null
+     */
+    public static ListOfFloatArrays scale(IteratorContainer ic, SparseContactMatrix matrix, SharedContactPasses sharedPasses,
+                                          RowStatistics rowStatistics, ListOfFloatArrays targetVectorInitial,
+                                          ListOfFloatArrays initialGuess, String key) {
+        ListOfFloatArrays newVector = FinalScale.scaleToTargetVector(ic, matrix, sharedPasses, rowStatistics,
+                targetVectorInitial, initialGuess);
         if (newVector == null && HiCGlobals.printVerboseComments) {
             System.err.println("Scaling result still null for " + key + "; vector did not converge");
         }
@@ -43,6 +63,11 @@ public class ZeroScale {
 
 
     public static ListOfFloatArrays normalizeVectorByScaleFactor(ListOfFloatArrays newNormVector, IteratorContainer ic) {
+        return normalizeVectorByScaleFactor(newNormVector, ic, null);
+    }
+
+    public static ListOfFloatArrays normalizeVectorByScaleFactor(ListOfFloatArrays newNormVector, IteratorContainer ic,
+                                                                 SparseContactMatrix matrix) {
 
         for (long k = 0; k < newNormVector.getLength(); k++) {
             float kVal = newNormVector.get(k);
@@ -55,26 +80,33 @@ public class ZeroScale {
 
         double normalizedSumTotal = 0, sumTotal = 0;
 
-        Iterator<ContactRecord> iterator = ic.getNewContactRecordIterator();
-        while (iterator.hasNext()) {
-            ContactRecord cr = iterator.next();
-
-            int x = cr.getBinX();
-            int y = cr.getBinY();
-            final float counts = cr.getCounts();
-
-            double valX = newNormVector.get(x);
-            double valY = newNormVector.get(y);
-
-            if (!Double.isNaN(valX) && !Double.isNaN(valY)) {
-                double normalizedValue = counts / (valX * valY);
-                normalizedSumTotal += normalizedValue;
-                sumTotal += counts;
-                if (x != y) {
+        if (matrix != null) {
+            // the vector is now either positive or NaN, so the valid entries are the same
+            double[] sums = matrix.getNormMatrixSums(newNormVector);
+            normalizedSumTotal = sums[0];
+            sumTotal = sums[1];
+        } else {
+            Iterator<ContactRecord> iterator = ic.getNewContactRecordIterator();
+            while (iterator.hasNext()) {
+                ContactRecord cr = iterator.next();
+
+                int x = cr.getBinX();
+                int y = cr.getBinY();
+                final float counts = cr.getCounts();
+
+                double valX = newNormVector.get(x);
+                double valY = newNormVector.get(y);
+
+                if (!Double.isNaN(valX) && !Double.isNaN(valY)) {
+                    double normalizedValue = counts / (valX * valY);
                     normalizedSumTotal += normalizedValue;
                     sumTotal += counts;
-                }
+                    if (x != y) {
+                        normalizedSumTotal += normalizedValue;
+                        sumTotal += counts;
+                    }
 
+                }
             }
         }
 
@@ -84,13 +116,59 @@ public class ZeroScale {
     }
 
     public static ListOfFloatArrays mmbaScaleToVector(IteratorContainer ic, ListOfFloatArrays tempTargetVector) {
+        SparseContactMatrix matrix = SparseContactMatrix.create(ic);
+        try {
+            return mmbaScaleToVector(ic, matrix, null, tempTargetVector, null);
+        } finally {
+            if (matrix != null) matrix.release();
+        }
+    }
+
+    /**
+     * @param initialGuess scaling vector to start from (see {@link #createWarmStart}), or null to start from ones
+     */
+    public static ListOfFloatArrays mmbaScaleToVector(IteratorContainer ic, SparseContactMatrix matrix,
+                                                      RowStatistics rowStatistics, ListOfFloatArrays tempTargetVector,
+                                                      ListOfFloatArrays initialGuess) {
+        return mmbaScaleToVector(ic, matrix, null, rowStatistics, tempTargetVector, initialGuess);
+    }
+
+    /**
+     * @param sharedPasses passes over ic shared with other calculations (only for the iterations), or null
+     */
+    public static ListOfFloatArrays mmbaScaleToVector(IteratorContainer ic, SparseContactMatrix matrix,
+                                                      SharedContactPasses sharedPasses, RowStatistics rowStatistics,
+                                                      ListOfFloatArrays tempTargetVector, ListOfFloatArrays initialGuess) {
 
-        ListOfFloatArrays newNormVector = scale(ic, tempTargetVector, "mmsa_scale");
+        ListOfFloatArrays newNormVector = scale(ic, matrix, sharedPasses, rowStatistics, tempTargetVector, initialGuess, "mmsa_scale");
         if (newNormVector != null) {
-            newNormVector = normalizeVectorByScaleFactor(newNormVector, ic);
+            newNormVector = normalizeVectorByScaleFactor(newNormVector, ic, matrix);
         }
 
         return newNormVector;
     }
 
+    /**
+     * Upsample a SCALE vector from a coarser resolution to use as the initial guess at a finer one.
+     * Each fine bin takes the value of the coarse bin holding its start; the norm vector is inverted
+     * back into a scaling vector, with NaN where the coarse vector has no value.
+     *
+     * @param coarseNorm    normalization vector of the chromosome at the coarser resolution
+     * @param coarseBinSize bin size of the coarser resolution
+     * @param fineBinSize   bin size of the finer resolution
+     * @param fineLength    number of bins at the finer resolution
+     */
+    public static ListOfFloatArrays createWarmStart(ListOfFloatArrays coarseNorm, int coarseBinSize,
+                                                    int fineBinSize, long fineLength) {
+        ListOfFloatArrays initialGuess = new ListOfFloatArrays(fineLength, Float.NaN);
+        for (long i = 0; i < fineLength; i++) {
+            long coarseIndex = i * fineBinSize / coarseBinSize;
+            if (coarseIndex >= coarseNorm.getLength()) break;
+            float value = coarseNorm.get(coarseIndex);
+            if (value > 0 && !Float.isInfinite(value)) {
+                initialGuess.set(i, 1.f / value);
+            }
+        }
+        return initialGuess;
+    }
 }
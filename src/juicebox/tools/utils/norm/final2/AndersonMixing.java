@@ -0,0 +1,209 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm.final2;
+
+import javastraw.reader.datastructures.ListOfFloatArrays;
+import javastraw.reader.datastructures.ListOfIntArrays;
+import juicebox.tools.utils.norm.VectorMath;
+
+/**
+ * Anderson mixing for the accelerated SCALE iterations. Each iteration maps the scaling vector to a
+ * new one; the mixing extrapolates from the last few of those steps so the fixed point is reached in
+ * fewer sparse multiplies. It works on the logs of the scaling vectors, which keeps them positive.
+ * <p/>
+ * Only the differences between consecutive residuals and outputs are kept, plus the Gram matrix
+ * of the residual differences, so an update costs a few passes over the vectors and no multiply.
+ */
+class AndersonMixing {
+
+    // a residual this many times larger than the smallest one since the reset means the mixing diverged
+    private static final double DIVERGENCE_FACTOR = 10;
+    // mixed logs past this are treated as a divergence instead of being written out
+    private static final double MAX_LOG = 60;
+    private static final double REGULARIZATION = 1e-10;
+
+    private final int depth;
+    private final ListOfFloatArrays[] deltaResiduals, deltaOutputs;
+    private final ListOfFloatArrays lastResidual, lastOutput;
+    private final double[][] gram;
+    private int numStored, next;
+    private boolean hasLast;
+    private double smallestResidual;
+
+    AndersonMixing(int depth, long capacity) {
+        this.depth = depth;
+        deltaResiduals = new ListOfFloatArrays[depth];
+        deltaOutputs = new ListOfFloatArrays[depth];
+        for (int i = 0; i < depth; i++) {
+            deltaResiduals[i] = new ListOfFloatArrays(capacity);
+            deltaOutputs[i] = new ListOfFloatArrays(capacity);
+        }
+        lastResidual = new ListOfFloatArrays(capacity);
+        lastOutput = new ListOfFloatArrays(capacity);
+        gram = new double[depth][depth];
+        reset();
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Forget the history, e.g. when the rows being scaled change
+     */
+    void reset() {
+        numStored = 0;
+        next = 0;
+        hasLast = false;
+        smallestResidual = Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Replace the output of an iteration with the mixed one. Rows that are excluded,
+     * or whose entries are not positive, are left as they are.
+     *
+     * @param vector scaling vector after the plain update, i.e. the input times the ratio
+     * @param ratio  factor the plain update multiplied the input by
+     * @return false if the residual grew so much that the mixing should be dropped, in which case
+     * the vector is left as the plain update made it
+     */
+    boolean mix(ListOfFloatArrays vector, ListOfFloatArrays ratio, ListOfIntArrays excluded, long k) {
+        ListOfFloatArrays deltaResidual = deltaResiduals[next];
+        ListOfFloatArrays deltaOutput = deltaOutputs[next];
+        double residualNorm = 0;
+        for (long p = 0; p < k; p++) {
+            float residual = 0, output = 0;
+            if (isMixed(vector, ratio, excluded, p)) {
+                residual = (float) Math.log(ratio.get(p));
+                output = (float) Math.log(vector.get(p));
+                residualNorm += residual * residual;
+            }
+            if (hasLast) {
+                deltaResidual.set(p, residual - lastResidual.get(p));
+                deltaOutput.set(p, output - lastOutput.get(p));
+            }
+            lastResidual.set(p, residual);
+            lastOutput.set(p, output);
+        }
+
+        if (!(residualNorm <= DIVERGENCE_FACTOR * DIVERGENCE_FACTOR * smallestResidual)
+                && smallestResidual < Double.POSITIVE_INFINITY) {
+            return false;
+        }
+        smallestResidual = Math.min(smallestResidual, residualNorm);
+
+        if (!hasLast) {
+            hasLast = true;
+            return true;
+        }
+        numStored = Math.min(numStored + 1, depth);
+        for (int slot = 0; slot < numStored; slot++) {
+            gram[next][slot] = gram[slot][next] = VectorMath.dot(deltaResidual, deltaResiduals[slot], k);
+        }
+        next = (next + 1) % depth;
+
+        // least squares: the combination of residual differences closest to the last residual
+        double[][] system = new double[numStored][numStored + 1];
+        double trace = 0;
+        for (int i = 0; i < numStored; i++) {
+            trace += gram[i][i];
+        }
+        for (int i = 0; i < numStored; i++) {
+            System.arraycopy(gram[i], 0, system[i], 0, numStored);
+            system[i][i] += REGULARIZATION * trace;
+            system[i][numStored] = VectorMath.dot(deltaResiduals[i], lastResidual, k);
+        }
+        double[] gamma = solve(system);
+        if (gamma == null) {
+            return true;
+        }
+
+        // check the mixed vector before writing any of it, so a bad combination leaves the plain update
+        for (long p = 0; p < k; p++) {
+            if (!isMixed(vector, ratio, excluded, p)) continue;
+            double mixed = getMixed(p, gamma);
+            if (!(Math.abs(mixed) < MAX_LOG)) {
+                reset();
+                return false;
+            }
+        }
+        for (long p = 0; p < k; p++) {
+            if (!isMixed(vector, ratio, excluded, p)) continue;
+            double mixed = getMixed(p, gamma);
+            vector.set(p, (float) Math.exp(mixed));
+        }
+        return true;
+    }
+
+    private boolean isMixed(ListOfFloatArrays vector, ListOfFloatArrays ratio, ListOfIntArrays excluded, long p) {
+        if (excluded.get(p) == 1) return false;
+        float value = vector.get(p);
+        float factor = ratio.get(p);
+        return value > 0 && factor > 0 && !Float.isInfinite(value) && !Float.isInfinite(factor);
+    }
+
+    private double getMixed(long p, double[] gamma) {
+        double mixed = lastOutput.get(p);
+        for (int i = 0; i < gamma.length; i++) {
+            mixed -= gamma[i] * deltaOutputs[i].get(p);
+        }
+        return mixed;
+    }
+
+    /**
+     * Gaussian elimination with partial pivoting on an augmented matrix
+     *
+     * @return the solution, or null if the system is singular
+     */
+    private static double[] solve(double[][] system) {
+        int n = system.length;
+        for (int c = 0; c < n; c++) {
+            int pivot = c;
+            for (int r = c + 1; r < n; r++) {
+                if (Math.abs(system[r][c]) > Math.abs(system[pivot][c])) pivot = r;
+            }
+            if (!(Math.abs(system[pivot][c]) > 0)) return null;
+            double[] temp = system[c];
+            system[c] = system[pivot];
+            system[pivot] = temp;
+            for (int r = c + 1; r < n; r++) {
+                double factor = system[r][c] / system[c][c];
+                for (int q = c; q <= n; q++) {
+                    system[r][q] -= factor * system[c][q];
+                }
+            }
+        }
+        double[] solution = new double[n];
+        for (int r = n - 1; r >= 0; r--) {
+            double sum = system[r][n];
+            for (int q = r + 1; q < n; q++) {
+                sum -= system[r][q] * solution[q];
+            }
+            solution[r] = sum / system[r][r];
+            if (Double.isNaN(solution[r]) || Double.isInfinite(solution[r])) return null;
+        }
+        return solution;
+    }
+}
@@ -24,14 +24,22 @@
 
 package juicebox.tools.utils.norm.final2;
 
-import javastraw.reader.block.ContactRecord;
+import javastraw.reader.datastructures.ListOfDoubleArrays;
 import javastraw.reader.datastructures.ListOfFloatArrays;
 import javastraw.reader.datastructures.ListOfIntArrays;
 import javastraw.reader.iterators.IteratorContainer;
 import juicebox.HiCGlobals;
+import juicebox.tools.utils.norm.IntegerHistogram;
+import juicebox.tools.utils.norm.OrderStatistics;
+import juicebox.tools.utils.norm.QuantileSketch;
+import juicebox.tools.utils.norm.RowStatistics;
+import juicebox.tools.utils.norm.SelectableArray;
+import juicebox.tools.utils.norm.SharedContactPasses;
+import juicebox.tools.utils.norm.SparseContactMatrix;
+import juicebox.tools.utils.norm.StagnationDetector;
+import juicebox.tools.utils.norm.VectorMath;
 
 import java.util.Arrays;
-import java.util.Iterator;
 
 public class FinalScale {
 
@@ -47,51 +55,103 @@ public class FinalScale {
     private final static int totalIterations = 3 * maxIter;
     private final static float minErrorThreshold = .02f;
     private static final float OFFSET = .5f;
+    private final static int andersonDepth = 5;
+    // with ABORT_NON_CONVERGING, give up once the error has not dropped by minImprovement within this many iterations
+    private final static int stagnationWindow = 60;
+    private final static double minImprovement = 0.05;
 
     public static ListOfFloatArrays scaleToTargetVector(IteratorContainer ic, ListOfFloatArrays targetVectorInitial) {
+        SparseContactMatrix matrix = SparseContactMatrix.create(ic);
+        try {
+            return scaleToTargetVector(ic, matrix, null, targetVectorInitial, null);
+        } finally {
+            if (matrix != null) matrix.release();
+        }
+    }
+
+    /**
+     * @param matrix        CSR copy of the contacts in ic; if null, the iterator container is used for every pass
+     * @param rowStatistics row statistics of the matrix if already calculated, otherwise null
+     * @param initialGuess  approximate scaling vector to start the iterations from (e.g. the result at a
+     *                      coarser resolution), or null to start from all ones; only its shape matters
+     */
+    public static ListOfFloatArrays scaleToTargetVector(IteratorContainer ic, SparseContactMatrix matrix,
+                                                        RowStatistics rowStatistics, ListOfFloatArrays targetVectorInitial,
+                                                        ListOfFloatArrays initialGuess) {
+        return scaleToTargetVector(ic, matrix, null, rowStatistics, targetVectorInitial, initialGuess);
+    }
+
+    /**
+     * @param sharedPasses if there is no matrix, passes over ic shared with other calculations (e.g. KR);
+     *                     null for the iterations to make their own passes
+     */
+    public static ListOfFloatArrays scaleToTargetVector(IteratorContainer ic, SparseContactMatrix matrix,
+                                                        SharedContactPasses sharedPasses, RowStatistics rowStatistics,
+                                                        ListOfFloatArrays targetVectorInitial, ListOfFloatArrays initialGuess) {
+        if (matrix == null && sharedPasses == null) {
+            // the same passes as when SCALE shares them with KR, so the vector does not depend on whether KR
+            // was requested too; they also sum in the order of the contacts, while the iterator container
+            // may add up the products of its threads in the order they finish
+            sharedPasses = new SharedContactPasses(ic, 1);
+        }
+        ScaleWorkspace workspace = ScaleWorkspace.acquire(targetVectorInitial.getLength());
+        try {
+            return scaleToTargetVector(ic, matrix, sharedPasses, rowStatistics, targetVectorInitial, initialGuess, workspace);
+        } finally {
+            ScaleWorkspace.release(workspace);
+        }
+    }
+
+    private static ListOfFloatArrays scaleToTargetVector(IteratorContainer ic, SparseContactMatrix matrix,
+                                                         SharedContactPasses sharedPasses, RowStatistics rowStatistics,
+                                                         ListOfFloatArrays targetVectorInitial, ListOfFloatArrays initialGuess,
+                                                         ScaleWorkspace workspace) {
 
         double low, zHigh, zLow;
-        int rlind, zlind, zhind;
+        long rlind, zlind, zhind;
         float localPercentLowRowSumExcluded = percentLowRowSumExcluded;
         float localPercentZValsToIgnore = percentZValsToIgnore;
 
         //	find the matrix dimensions
         long k = targetVectorInitial.getLength();
 
-        ListOfFloatArrays current = new ListOfFloatArrays(k);
-        ListOfFloatArrays row, col;
-        ListOfFloatArrays rowBackup = new ListOfFloatArrays(k);
-        ListOfFloatArrays dr = new ListOfFloatArrays(k);
-        ListOfFloatArrays dc = new ListOfFloatArrays(k);
-        ListOfIntArrays bad;
-        ListOfIntArrays bad1 = new ListOfIntArrays(k);
-        ListOfFloatArrays s = new ListOfFloatArrays(k);
-        double[] zz = new double[(int) Math.min(k, Integer.MAX_VALUE - 1)];
-        double[] r0 = new double[(int) Math.min(k, Integer.MAX_VALUE - 1)];
+        // no vector is allocated from here on: all of them come from the workspace
+        // and are updated in place (they may be longer than k; only the first k entries are used)
+        ListOfFloatArrays current = workspace.current;
+        ListOfFloatArrays row = workspace.row;
+        ListOfFloatArrays col = workspace.col;
+        ListOfFloatArrays rowBackup = workspace.rowBackup;
+        ListOfFloatArrays dr = workspace.dr;
+        ListOfFloatArrays dc = workspace.dc;
+        ListOfIntArrays bad = workspace.bad;
+        ListOfIntArrays bad1 = workspace.bad1;
+        ListOfFloatArrays s = workspace.s;
+        // null if the iterations are not accelerated, or the acceleration diverged
+        AndersonMixing mixing = HiCGlobals.ACCELERATE_SCALE ? workspace.getAndersonMixing(andersonDepth) : null;
+        StagnationDetector stagnation = HiCGlobals.ABORT_NON_CONVERGING
+                ? new StagnationDetector(stagnationWindow, minImprovement) : null;
         
-        ListOfFloatArrays zTargetVector = targetVectorInitial.deepClone();
-        ListOfFloatArrays calculatedVectorB = new ListOfFloatArrays(k);
-        ListOfFloatArrays one = new ListOfFloatArrays(k, 1);
-        ListOfIntArrays numNonZero = new ListOfIntArrays(k, 0);
+        ListOfFloatArrays zTargetVector = workspace.zTargetVector;
+        VectorMath.copy(targetVectorInitial, zTargetVector, k);
+        ListOfFloatArrays calculatedVectorB = workspace.calculatedVectorB;
+        VectorMath.fill(calculatedVectorB, k, 0);
+        ListOfFloatArrays one = workspace.one;
+        VectorMath.fill(one, k, 1);
+        ListOfIntArrays numNonZero;
+        if (rowStatistics == null) {
+            rowStatistics = RowStatistics.create(ic, matrix);
+        }
         
         double[] reportErrorForIteration = new double[totalIterations + 3];
         int[] numItersForAllIterations = new int[totalIterations + 3];
         
-        int l = 0;
-        for (long p = 0; p < k; p++) {
-            if (Float.isNaN(zTargetVector.get(p))) continue;
-            if (zTargetVector.get(p) > 0) {
-                zz[l++] = zTargetVector.get(p);
-            }
-        }
-        zz = dealWithSorting(zz, l);
+        OrderStatistics zz = getPositiveTargets(zTargetVector, k, workspace);
+        long l = zz.getCount();
         
-        // unlikey to exceed max int for lind; hind
-        // for now we will only sort one vector and hope that suffices
-        zlind = (int) Math.max(0, l * localPercentZValsToIgnore + OFFSET);
-        zhind = (int) Math.min(l - 1, l * (1.0 - localPercentZValsToIgnore) + OFFSET);
-        zLow = zz[zlind];
-        zHigh = zz[zhind];
+        zlind = (long) Math.max(0, l * localPercentZValsToIgnore + OFFSET);
+        zhind = (long) Math.min(l - 1, l * (1.0 - localPercentZValsToIgnore) + OFFSET);
+        zLow = zz.getValueAtRank(zlind);
+        zHigh = zz.getValueAtRank(zhind);
         
         for (long p = 0; p < k; p++) {
             double valZ = zTargetVector.get(p);
@@ -101,36 +161,32 @@ public class FinalScale {
         }
         
         
+        boolean hasZeroTargets = false;
         for (long p = 0; p < k; p++) {
             if (zTargetVector.get(p) == 0) {
                 one.set(p, 0);
+                hasZeroTargets = true;
             }
         }
         
         
         if (removeZerosOnDiag) {
-            bad = new ListOfIntArrays(k, 1);
-            setBadValues(bad, ic);
+            VectorMath.fill(bad, k, 1);
+            setBadValues(bad, rowStatistics);
         } else {
-            bad = new ListOfIntArrays(k, 0);
+            VectorMath.fill(bad, k, 0);
         }
 
         //	find rows sums
-        setRowSums(numNonZero, ic);
+        numNonZero = rowStatistics.getNumNonZero();
         
         
         //	find relevant percentiles
-        int n0 = 0;
-        for (long p = 0; p < k; p++) {
-            int valP = numNonZero.get(p);
-            if (valP > 0) {
-                r0[n0++] = valP;
-            }
-        }
-        r0 = dealWithSorting(r0, n0);
+        OrderStatistics r0 = getPositiveCounts(numNonZero, k, workspace);
+        long n0 = r0.getCount();
         
-        rlind = (int) Math.max(0, n0 * localPercentLowRowSumExcluded + OFFSET);
-        low = r0[rlind];
+        rlind = (long) Math.max(0, n0 * localPercentLowRowSumExcluded + OFFSET);
+        low = r0.getValueAtRank(rlind);
         
         
         //	find the "bad" rows and exclude them
@@ -141,14 +197,22 @@ public class FinalScale {
             }
         }
 
-        row = sparseMultiplyGetRowSums(ic, one, k);
-        rowBackup = row.deepClone();
+        if (hasZeroTargets) {
+            sparseMultiplyGetRowSums(matrix, sharedPasses, one, k, row);
+        } else {
+            // multiplying by a vector of ones just gives the row sums
+            ListOfDoubleArrays rowSums = rowStatistics.getRowSums();
+            for (long p = 0; p < k; p++) {
+                row.set(p, (float) rowSums.get(p));
+            }
+        }
+        VectorMath.copy(row, rowBackup, k);
         
         for (long p = 0; p < k; p++) {
             dr.set(p, 1 - bad.get(p));
         }
-        dc = dr.deepClone();
-        one = dr.deepClone();
+        VectorMath.copy(dr, dc, k);
+        VectorMath.copy(dr, one, k);
         
         // treat separately rows for which z[p] = 0
         for (long p = 0; p < k; p++) {
@@ -160,7 +224,27 @@ public class FinalScale {
             bad1.set(p, (int) (1 - one.get(p)));
         }
         
-        current = dr.deepClone();
+        VectorMath.copy(dr, current, k);
+        // s and col are free until the first iteration, so they hold the guess and its product
+        if (initialGuess != null && getWarmStart(initialGuess, bad, k, s)) {
+            sparseMultiplyGetRowSums(matrix, sharedPasses, s, k, col);
+            // x * (A x) grows with the square of x; match the target on average
+            double targetSum = 0, currentSum = 0;
+            for (long p = 0; p < k; p++) {
+                if (bad1.get(p) == 1) continue;
+                targetSum += zTargetVector.get(p);
+                currentSum += s.get(p) * col.get(p);
+            }
+            if (currentSum > 0 && targetSum > 0) {
+                float factor = (float) Math.sqrt(targetSum / currentSum);
+                for (long p = 0; p < k; p++) {
+                    dr.set(p, factor * s.get(p));
+                    row.set(p, factor * col.get(p) * dr.get(p));
+                }
+                VectorMath.copy(dr, dc, k);
+                VectorMath.copy(dr, current, k);
+            }
+        }
         //	start iterations
         //	row is the current rows sum; dr and dc are the current rows and columns scaling vectors
         double ber = 10.0 * (1.0 + tolerance);
@@ -179,26 +263,35 @@ public class FinalScale {
             allItersI++;
             fail = 1;
     
-            for (int p = 0; p < k; p++) {
-                if (bad1.get(p) == 1) row.set(p, 1.0f);
-            }
-            for (int p = 0; p < k; p++) {
-                s.set(p, zTargetVector.get(p) / row.get(p));
-            }
-            for (long p = 0; p < k; p++) {
-                dr.multiplyBy(p, s.get(p));
+            VectorMath.assignWhere(row, bad1, 1.0f, k);
+            if (mixing != null) {
+                // symmetric update: both scaling vectors move halfway towards the target, so one multiply
+                // per iteration is enough; the mixing then extrapolates from the last few iterations
+                for (long p = 0; p < k; p++) s.set(p, (float) Math.sqrt(zTargetVector.get(p) / row.get(p)));
+                VectorMath.multiply(dr, s, k);
+                if (!mixing.mix(dr, s, bad1, k)) {
+                    if (HiCGlobals.printVerboseComments) {
+                        System.out.println("Accelerated SCALE diverged at iteration " + allItersI + "; continuing without it");
+                    }
+                    // dr holds the plain update, and dr = dc keeps row consistent for the classic iterations
+                    mixing = null;
+                }
+                VectorMath.copy(dr, dc, k);
+            } else {
+                VectorMath.divide(zTargetVector, row, s, k);
+                VectorMath.multiply(dr, s, k);
+
+                // find column sums and update rows scaling vector
+                sparseMultiplyGetRowSums(matrix, sharedPasses, dr, k, col);
+                VectorMath.multiply(col, dc, k);
+                VectorMath.assignWhere(col, bad1, 1.0f, k);
+                VectorMath.divide(zTargetVector, col, s, k);
+                VectorMath.multiply(dc, s, k);
             }
     
-            // find column sums and update rows scaling vector
-            col = sparseMultiplyGetRowSums(ic, dr, k);
-            for (long p = 0; p < k; p++) col.multiplyBy(p, dc.get(p));
-            for (long p = 0; p < k; p++) if (bad1.get(p) == 1) col.set(p, 1.0f);
-            for (long p = 0; p < k; p++) s.set(p, zTargetVector.get(p) / col.get(p));
-            for (long p = 0; p < k; p++) dc.multiplyBy(p, s.get(p));
-    
             // find row sums and update columns scaling vector
-            row = sparseMultiplyGetRowSums(ic, dc, k);
-            for (long p = 0; p < k; p++) row.multiplyBy(p, dr.get(p));
+            sparseMultiplyGetRowSums(matrix, sharedPasses, dc, k, row);
+            VectorMath.multiply(row, dr, k);
     
             // calculate current scaling vector
             for (long p = 0; p < k; p++) {
@@ -206,22 +299,21 @@ public class FinalScale {
             }
     
             //	calculate the current error
-            ber = 0;
-            for (long p = 0; p < k; p++) {
-                if (bad1.get(p) == 1) continue;
-                double tempErr = Math.abs(calculatedVectorB.get(p) - current.get(p));
-                if (tempErr > ber) {
-                    ber = tempErr;
-                }
-            }
+            ber = VectorMath.maxAbsDifference(calculatedVectorB, current, bad1, k);
     
             reportErrorForIteration[allItersI - 1] = ber;
             numItersForAllIterations[allItersI - 1] = iter;
+            if (stagnation != null && stagnation.isStagnant(ber)) {
+                if (HiCGlobals.printVerboseComments) {
+                    System.out.println("SCALE stopped improving by iteration " + allItersI + "; giving up");
+                }
+                return null;
+            }
     
             //	since calculating the error in row sums requires matrix-vector multiplication we are are doing this every 10
             //	iterations
             if (iter % 10 == 0) {
-                col = sparseMultiplyGetRowSums(ic, calculatedVectorB, k);
+                sparseMultiplyGetRowSums(matrix, sharedPasses, calculatedVectorB, k, col);
                 err = 0;
                 for (long p = 0; p < k; p++) {
                     if (bad1.get(p) == 1) continue;
@@ -233,7 +325,7 @@ public class FinalScale {
                 errors[nerr++] = err;
             }
     
-            current = calculatedVectorB.deepClone();
+            VectorMath.copy(calculatedVectorB, current, k);
 
             // check whether convergence rate is satisfactory
             // if less than 5 iterations (so less than 5 errors) and less than 2 row sums errors, there is nothing to check
@@ -259,12 +351,12 @@ public class FinalScale {
                     localPercentLowRowSumExcluded += dp;
                     localPercentZValsToIgnore += dp1;
                     nerr = 0;
-                    rlind = (int) Math.max(0, n0 * localPercentLowRowSumExcluded + OFFSET);
-                    low = r0[rlind];
-                    zlind = (int) Math.max(0, l * localPercentZValsToIgnore + OFFSET);
-                    zhind = (int) Math.min(l - 1, l * (1.0 - localPercentZValsToIgnore) + OFFSET);
-                    zLow = zz[zlind];
-                    zHigh = zz[zhind];
+                    rlind = (long) Math.max(0, n0 * localPercentLowRowSumExcluded + OFFSET);
+                    low = r0.getValueAtRank(rlind);
+                    zlind = (long) Math.max(0, l * localPercentZValsToIgnore + OFFSET);
+                    zhind = (long) Math.min(l - 1, l * (1.0 - localPercentZValsToIgnore) + OFFSET);
+                    zLow = zz.getValueAtRank(zlind);
+                    zHigh = zz.getValueAtRank(zhind);
                     for (long p = 0; p < k; p++) {
                         if (zTargetVector.get(p) > 0 && (zTargetVector.get(p) < zLow || zTargetVector.get(p) > zHigh)) {
                             zTargetVector.set(p, Float.NaN);
@@ -282,6 +374,14 @@ public class FinalScale {
     
                     ber = 10.0 * (1.0 + tol);
                     err = 10.0 * (1.0 + tol);
+                    if (mixing != null) {
+                        // the rows being scaled changed, so the history no longer applies
+                        mixing.reset();
+                    }
+                    if (stagnation != null) {
+                        // errors from the previous rows say nothing about the new attempt
+                        stagnation.reset();
+                    }
     
                     //	if the current error is larger than 5 iteration ago start from scratch,
                     //	otherwise continue from the current position
@@ -289,10 +389,10 @@ public class FinalScale {
                         for (long p = 0; p < k; p++) {
                             dr.set(p, 1 - bad.get(p));
                         }
-                        dc = dr.deepClone();
-                        one = dr.deepClone();
-                        current = dr.deepClone();
-                        row = rowBackup.deepClone();
+                        VectorMath.copy(dr, dc, k);
+                        VectorMath.copy(dr, one, k);
+                        VectorMath.copy(dr, current, k);
+                        VectorMath.copy(rowBackup, row, k);
                     } else {
                         for (long p = 0; p < k; p++) {
                             dr.multiplyBy(p, (1 - bad.get(p)));
@@ -308,7 +408,7 @@ public class FinalScale {
 
         //	find the final error in row sums
         if (iter % 10 == 0) {
-            col = sparseMultiplyGetRowSums(ic, calculatedVectorB, k);
+            sparseMultiplyGetRowSums(matrix, sharedPasses, calculatedVectorB, k, col);
             err = 0;
             for (int p = 0; p < k; p++) {
                 if (bad1.get(p) == 1) continue;
@@ -321,11 +421,7 @@ public class FinalScale {
         reportErrorForIteration[allItersI + 1] = ber;
         reportErrorForIteration[allItersI + 2] = err;
         
-        for (long p = 0; p < k; p++) {
-            if (bad.get(p) == 1) {
-                calculatedVectorB.set(p, Float.NaN);
-            }
-        }
+        VectorMath.assignWhere(calculatedVectorB, bad, Float.NaN, k);
 
         if (HiCGlobals.printVerboseComments) {
             System.out.println(allItersI);
@@ -334,43 +430,111 @@ public class FinalScale {
             System.out.println(Arrays.toString(reportErrorForIteration));
         }
 
-        return calculatedVectorB;
+        ListOfFloatArrays result = new ListOfFloatArrays(k);
+        VectorMath.copy(calculatedVectorB, result, k);
+        return result;
     }
 
-    private static void setRowSums(ListOfIntArrays numNonZero, IteratorContainer ic) {
-        Iterator<ContactRecord> iterator = ic.getNewContactRecordIterator();
-        while (iterator.hasNext()) {
-            ContactRecord cr = iterator.next();
-            int x = cr.getBinX();
-            int y = cr.getBinY();
-            numNonZero.addTo(x, 1);
-            if (x != y) {
-                numNonZero.addTo(y, 1);
+    /**
+     * Copy the guess into warmStart, with bad rows set to 0 and rows without a valid guess set to the mean
+     * of the valid ones
+     *
+     * @return false if the guess has no valid entry
+     */
+    private static boolean getWarmStart(ListOfFloatArrays initialGuess, ListOfIntArrays bad, long k, ListOfFloatArrays warmStart) {
+        double guessSum = 0;
+        long numValid = 0;
+        for (long p = 0; p < k; p++) {
+            float guess = initialGuess.get(p);
+            if (bad.get(p) == 0 && guess > 0 && !Float.isInfinite(guess)) {
+                guessSum += guess;
+                numValid++;
+            }
+        }
+        if (numValid == 0) return false;
+        float fill = (float) (guessSum / numValid);
+
+        for (long p = 0; p < k; p++) {
+            float guess = initialGuess.get(p);
+            if (bad.get(p) == 1) {
+                warmStart.set(p, 0);
+            } else {
+                warmStart.set(p, guess > 0 && !Float.isInfinite(guess) ? guess : fill);
             }
         }
+        return true;
     }
 
-    private static void setBadValues(ListOfIntArrays bad, IteratorContainer ic) {
-        Iterator<ContactRecord> iterator = ic.getNewContactRecordIterator();
-        while (iterator.hasNext()) {
-            ContactRecord cr = iterator.next();
-            int x = cr.getBinX();
-            int y = cr.getBinY();
-            if (x == y) {
-                bad.set(x, 0);
+    /**
+     * @return the positive (non-NaN) targets, selected in place in the workspace or sketched if there are too many
+     */
+    private static OrderStatistics getPositiveTargets(ListOfFloatArrays zTargetVector, long k, ScaleWorkspace workspace) {
+        long count = 0;
+        for (long p = 0; p < k; p++) {
+            if (zTargetVector.get(p) > 0) count++;
+        }
+        if (QuantileSketch.shouldUse(count)) {
+            QuantileSketch sketch = new QuantileSketch();
+            for (long p = 0; p < k; p++) {
+                float valZ = zTargetVector.get(p);
+                if (valZ > 0) sketch.add(valZ);
             }
+            return sketch;
         }
+        double[] zz = workspace.getZz();
+        int l = 0;
+        for (long p = 0; p < k; p++) {
+            float valZ = zTargetVector.get(p);
+            if (valZ > 0) zz[l++] = valZ;
+        }
+        return new SelectableArray(zz, l);
     }
 
-    private static double[] dealWithSorting(double[] vector, int length) {
-        double[] realVector = new double[length];
-        System.arraycopy(vector, 0, realVector, 0, length);
-        Arrays.sort(realVector);
-        return realVector;
+    /**
+     * @return the numbers of nonzero entries of the nonempty rows, selected in place in the workspace
+     * or, if there are too many to copy, counted per value; either way exactly, since the rows are filtered
+     * with a strict test against a percentile and an approximation would move it by a whole count
+     */
+    private static OrderStatistics getPositiveCounts(ListOfIntArrays numNonZero, long k, ScaleWorkspace workspace) {
+        long count = 0;
+        int maxCount = 0;
+        for (long p = 0; p < k; p++) {
+            int valP = numNonZero.get(p);
+            if (valP > 0) count++;
+            maxCount = Math.max(maxCount, valP);
+        }
+        if (QuantileSketch.shouldUse(count)) {
+            IntegerHistogram histogram = new IntegerHistogram(maxCount);
+            for (long p = 0; p < k; p++) {
+                int valP = numNonZero.get(p);
+                if (valP > 0) histogram.add(valP);
+            }
+            return histogram;
+        }
+        double[] r0 = workspace.getR0();
+        int n0 = 0;
+        for (long p = 0; p < k; p++) {
+            int valP = numNonZero.get(p);
+            if (valP > 0) r0[n0++] = valP;
+        }
+        return new SelectableArray(r0, n0);
     }
 
-    private static ListOfFloatArrays sparseMultiplyGetRowSums(IteratorContainer ic,
-                                                              ListOfFloatArrays vector, long vectorLength) {
-        return ic.sparseMultiply(vector, vectorLength);
+    private static void setBadValues(ListOfIntArrays bad, RowStatistics rowStatistics) {
+        ListOfFloatArrays diagonal = rowStatistics.getDiagonal();
+        for (long p = 0; p < diagonal.getLength(); p++) {
+            if (diagonal.get(p) != 0) {
+                bad.set(p, 0);
+            }
+        }
+    }
+
+    private static void sparseMultiplyGetRowSums(SparseContactMatrix matrix, SharedContactPasses sharedPasses,
+                                                 ListOfFloatArrays vector, long vectorLength, ListOfFloatArrays result) {
+        if (matrix != null) {
+            matrix.sparseMultiply(vector, result);
+        } else {
+            VectorMath.copy(sharedPasses.multiply(vector), result, vectorLength);
+        }
     }
 }
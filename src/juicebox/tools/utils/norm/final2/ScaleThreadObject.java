@@ -21,28 +21,70 @@
  *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
  *  THE SOFTWARE.
  */
-
 package juicebox.tools.utils.norm.final2;
 
+/**
+ * Symmetric sparse multiply over one range of rows of a CSR matrix.
+ * The columns and values arrays hold the contacts of the range starting at firstContact,
+ * which is 0 when they hold the whole matrix.
+ */
 public class ScaleThreadObject {
-	private final int[] iIndexes;
-	private final int[] jIndexes;
-	private final float[] xValues;
-	private final float[] vVector;
-	private final float[] result;
+	private final long[] rowPointers;
+	private final int[] columns;
+	private final float[] values;
+	private final long firstContact;
+	private final int startRow;
+	private final int endRow;
 	
-	public ScaleThreadObject(int[] iIndexes, int[] jIndexes, float[] xValues, float[] vVector, float[] result) {
-		this.iIndexes = iIndexes;
-		this.jIndexes = jIndexes;
-		this.xValues = xValues;
-		this.vVector = vVector;
-		this.result = result;
+	public ScaleThreadObject(long[] rowPointers, int[] columns, float[] values, long firstContact, int startRow, int endRow) {
+		this.rowPointers = rowPointers;
+		this.columns = columns;
+		this.values = values;
+		this.firstContact = firstContact;
+		this.startRow = startRow;
+		this.endRow = endRow;
 	}
 	
-	public void execute() {
-        for (int p = 0; p < xValues.length; p++) {
-            result[iIndexes[p]] += xValues[p] * vVector[jIndexes[p]];
-            result[jIndexes[p]] += xValues[p] * vVector[iIndexes[p]];
+	public void execute(float[] vVector, float[] result) {
+        for (int i = startRow; i < endRow; i++) {
+            float sum = 0;
+            float vI = vVector[i];
+            int end = getRowEnd(i);
+            for (int p = getRowStart(i); p < end; p++) {
+                int j = columns[p];
+                sum += values[p] * vVector[j];
+                if (i != j) {
+                    result[j] += values[p] * vI;
+                }
+            }
+            result[i] += sum;
         }
     }
+
+    /**
+     * @return index in the columns and values arrays of the first contact of the row
+     */
+    public int getRowStart(int row) {
+        return (int) (rowPointers[row] - firstContact);
+    }
+
+    public int getRowEnd(int row) {
+        return (int) (rowPointers[row + 1] - firstContact);
+    }
+
+    public int[] getColumns() {
+        return columns;
+    }
+
+    public float[] getValues() {
+        return values;
+    }
+
+    public int getStartRow() {
+        return startRow;
+    }
+
+    public int getEndRow() {
+        return endRow;
+    }
 }
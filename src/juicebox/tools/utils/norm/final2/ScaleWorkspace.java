@@ -0,0 +1,147 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2020 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.tools.utils.norm.final2;
+
+import javastraw.reader.datastructures.ListOfFloatArrays;
+import javastraw.reader.datastructures.ListOfIntArrays;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Scratch vectors for one run of FinalScale. Workspaces are pooled, so runs for later chromosomes,
+ * resolutions and norms reuse the vectors instead of allocating new ones; a workspace can be larger
+ * than the matrix, in which case only the first k entries of each vector are used.
+ * The pool only holds soft references, so it never keeps memory the JVM needs elsewhere.
+ */
+class ScaleWorkspace {
+
+    private static final int MAX_POOLED_WORKSPACES = 4;
+    private static final List<SoftReference<ScaleWorkspace>> pool = new ArrayList<>();
+
+    final long capacity;
+    final ListOfFloatArrays current, row, col, rowBackup, dr, dc, s, calculatedVectorB, one, zTargetVector;
+    final ListOfIntArrays bad, bad1;
+    private double[] zz, r0;
+    private AndersonMixing mixing;
+
+    private ScaleWorkspace(long capacity) {
+        this.capacity = capacity;
+        current = new ListOfFloatArrays(capacity);
+        row = new ListOfFloatArrays(capacity);
+        col = new ListOfFloatArrays(capacity);
+        rowBackup = new ListOfFloatArrays(capacity);
+        dr = new ListOfFloatArrays(capacity);
+        dc = new ListOfFloatArrays(capacity);
+        s = new ListOfFloatArrays(capacity);
+        calculatedVectorB = new ListOfFloatArrays(capacity);
+        one = new ListOfFloatArrays(capacity);
+        zTargetVector = new ListOfFloatArrays(capacity);
+        bad = new ListOfIntArrays(capacity);
+        bad1 = new ListOfIntArrays(capacity);
+    }
+
+    /**
+     * @return buffer for selecting among the targets; only allocated if the exact selection is used
+     */
+    double[] getZz() {
+        if (zz == null) {
+            zz = new double[(int) Math.min(capacity, Integer.MAX_VALUE - 1)];
+        }
+        return zz;
+    }
+
+    /**
+     * @return buffer for selecting among the row counts; only allocated if the exact selection is used
+     */
+    double[] getR0() {
+        if (r0 == null) {
+            r0 = new double[(int) Math.min(capacity, Integer.MAX_VALUE - 1)];
+        }
+        return r0;
+    }
+
+    /**
+     * @return history of depth vectors for the accelerated iterations, emptied; only allocated if they are used
+     */
+    AndersonMixing getAndersonMixing(int depth) {
+        if (mixing == null || mixing.getDepth() != depth) {
+            mixing = new AndersonMixing(depth, capacity);
+        }
+        mixing.reset();
+        return mixing;
+    }
+
+    /**
+     * @return the smallest pooled workspace with room for k entries, or a new one if there is none
+     */
+    static ScaleWorkspace acquire(long k) {
+        synchronized (pool) {
+            ScaleWorkspace best = null;
+            for (Iterator<SoftReference<ScaleWorkspace>> iterator = pool.iterator(); iterator.hasNext(); ) {
+                ScaleWorkspace workspace = iterator.next().get();
+                if (workspace == null) {
+                    iterator.remove();
+                } else if (workspace.capacity >= k && (best == null || workspace.capacity < best.capacity)) {
+                    best = workspace;
+                }
+            }
+            if (best != null) {
+                for (Iterator<SoftReference<ScaleWorkspace>> iterator = pool.iterator(); iterator.hasNext(); ) {
+                    if (iterator.next().get() == best) {
+                        iterator.remove();
+                        break;
+                    }
+                }
+                return best;
+            }
+        }
+        return new ScaleWorkspace(k);
+    }
+
+    /**
+     * Return the workspace to the pool; if the pool is full, the smallest workspace is dropped
+     */
+    static void release(ScaleWorkspace workspace) {
+        synchronized (pool) {
+            pool.add(new SoftReference<>(workspace));
+            if (pool.size() > MAX_POOLED_WORKSPACES) {
+                SoftReference<ScaleWorkspace> smallest = null;
+                long smallestCapacity = Long.MAX_VALUE;
+                for (SoftReference<ScaleWorkspace> reference : pool) {
+                    ScaleWorkspace pooled = reference.get();
+                    long capacity = pooled == null ? -1 : pooled.capacity;
+                    if (capacity < smallestCapacity) {
+                        smallest = reference;
+                        smallestCapacity = capacity;
+                    }
+                }
+                pool.remove(smallest);
+            }
+        }
+    }
+}
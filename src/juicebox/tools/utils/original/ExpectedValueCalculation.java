@@ -35,6 +35,7 @@ import javastraw.reader.iterators.IteratorContainer;
 import javastraw.reader.type.HiCZoom;
 import javastraw.reader.type.NormalizationType;
 import juicebox.tools.utils.norm.NormVectorUpdater;
+import juicebox.tools.utils.norm.SparseContactMatrix;
 
 import java.util.Arrays;
 import java.util.Iterator;
@@ -352,6 +353,87 @@ public class ExpectedValueCalculation {
             }
         }
     }
+
+    /**
+     * @return normalized counts of the contacts summed by binned distance, or null if none of them are valid
+     */
+    public static double[] getNormalizedDistanceSums(IteratorContainer ic, ListOfFloatArrays vector) {
+        double[] sums = new double[(int) ic.getMatrixSize()];
+        boolean hasData = false;
+        Iterator<ContactRecord> iterator = ic.getNewContactRecordIterator();
+        while (iterator.hasNext()) {
+            ContactRecord cr = iterator.next();
+            int x = cr.getBinX();
+            int y = cr.getBinY();
+            float xVal = vector.get(x);
+            float yVal = vector.get(y);
+            if (NormVectorUpdater.isValidNormValue(xVal) & NormVectorUpdater.isValidNormValue(yVal)) {
+                sums[Math.abs(x - y)] += cr.getCounts() / (xVal * yVal);
+                hasData = true;
+            }
+        }
+        return hasData ? sums : null;
+    }
+
+    public void addDistancesFromMatrix(int chrIndx, SparseContactMatrix matrix, ListOfFloatArrays vector) {
+        addDistanceSums(chrIndx, matrix.getNormalizedDistanceSums(vector));
+    }
+
+    /**
+     * Add observed counts that have already been summed by distance for a chromosome
+     *
+     * @param chrIdx       index of chromosome where observed, so can increment count
+     * @param distanceSums total count at each binned distance; null if nothing was observed
+     */
+    public synchronized void addDistanceSums(Integer chrIdx, double[] distanceSums) {
+        if (distanceSums == null || !chromosomesMap.containsKey(chrIdx)) return;
+
+        double total = 0;
+        int maxDist = Math.min(distanceSums.length, actualDistances.length);
+        for (int dist = 0; dist < maxDist; dist++) {
+            actualDistances[dist] += distanceSums[dist];
+            total += distanceSums[dist];
+        }
+
+        Double count = chromosomeCounts.get(chrIdx);
+        if (count == null) {
+            chromosomeCounts.put(chrIdx, total);
+        } else {
+            chromosomeCounts.put(chrIdx, count + total);
+        }
+    }
+
+    /**
+     * @return total count of each chromosome index added so far
+     */
+    public Map<Integer, Double> getChromosomeCounts() {
+        return chromosomeCounts;
+    }
+
+    /**
+     * @return total count at each binned distance added so far
+     */
+    public double[] getDistanceSums() {
+        return actualDistances;
+    }
+
+    /**
+     * Add the totals of another calculation of the same type and grid size, e.g. one read back from a file
+     *
+     * @param chromosomeCounts total count of each chromosome index
+     * @param distanceSums     total count at each binned distance
+     */
+    public synchronized void addCounts(Map<Integer, Double> chromosomeCounts, double[] distanceSums) {
+        for (Map.Entry<Integer, Double> entry : chromosomeCounts.entrySet()) {
+            if (!chromosomesMap.containsKey(entry.getKey())) continue;
+            Double count = this.chromosomeCounts.get(entry.getKey());
+            this.chromosomeCounts.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+        }
+        int maxDist = Math.min(distanceSums.length, actualDistances.length);
+        for (int dist = 0; dist < maxDist; dist++) {
+            actualDistances[dist] += distanceSums[dist];
+        }
+    }
 }
 
 